@@ -1,91 +1,173 @@
 package realms.jarlaxle.bluetoothutility;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import realms.jarlaxle.metrics.LatencyTracker;
+import realms.jarlaxle.protocol.FrameParser;
+import realms.jarlaxle.protocol.Heartbeat;
+import realms.jarlaxle.protocol.TelemetryFrame;
+import realms.jarlaxle.protocol.TelemetryListener;
+import realms.jarlaxle.recorder.FlightRecorder;
+import realms.jarlaxle.transport.Backoff;
+import realms.jarlaxle.transport.CommandQueue;
+import realms.jarlaxle.transport.Connector;
+import realms.jarlaxle.transport.IoLoop;
+import realms.jarlaxle.transport.Link;
+import realms.jarlaxle.transport.Transport;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.widget.ArrayAdapter;
 import android.widget.Toast;
 
 /** This class is used to create a connection over
  * Bluetooth to a device that is set.  It is meant
  * to be a general class that can be used in many situations.
+ * <p>
+ * Where the connection is up to is a State held in an atomic reference.
+ * Every change is a compare and set, so a late callback from discovery,
+ * a cancelled connector or an old link loses to whatever replaced it, and
+ * nothing can leave Closed.  Reading the state never locks, which keeps
+ * isConnected() cheap enough to check before every command.
  */
-public class BluetoothClass {
-
-	/** This is the UUID for serial port service connections */
-	private static final UUID SerialPortServiceClass_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+public class BluetoothClass implements Link.Callback, Connector.Callback, Heartbeat.Callback {
 	
-	/** The adapter on the phone, allows us to actually use bluetooth */
-	private BluetoothAdapter mBluetoothAdapter = null;	
+	/** Where the connection is up to */
+	public enum State
+	{
+		/** Not connected and not trying to */
+		IDLE,
+		/** Looking for the device by name */
+		DISCOVERING,
+		/** Trying to connect to a device */
+		CONNECTING,
+		/** Connected, commands can be written */
+		CONNECTED,
+		/** The connection was lost and is being remade */
+		RECONNECTING,
+		/** Closed for good, see close() */
+		CLOSED
+	}
+	
+	/** The states each state may move to, any other move is refused */
+	private static final EnumMap<State, EnumSet<State>> TRANSITIONS = new EnumMap<State, EnumSet<State>>(State.class);
+	static
+	{
+		TRANSITIONS.put(State.IDLE, EnumSet.of(State.IDLE, State.DISCOVERING, State.CONNECTING, State.CLOSED));
+		TRANSITIONS.put(State.DISCOVERING, EnumSet.of(State.IDLE, State.CONNECTING, State.CLOSED));
+		//A fast start that fails falls back to discovery
+		TRANSITIONS.put(State.CONNECTING, EnumSet.of(State.IDLE, State.DISCOVERING, State.CONNECTED, State.CLOSED));
+		TRANSITIONS.put(State.CONNECTED, EnumSet.of(State.IDLE, State.RECONNECTING, State.CLOSED));
+		TRANSITIONS.put(State.RECONNECTING, EnumSet.of(State.IDLE, State.CONNECTED, State.CLOSED));
+		TRANSITIONS.put(State.CLOSED, EnumSet.noneOf(State.class));
+	}
+
+	/** The adapter on the phone, allows us to actually use bluetooth, null if there is none */
+	private final BluetoothAdapter mBluetoothAdapter;	
 	/** Name of the device to connect to*/
 	private String mRemoteDeviceName = "robot";	
 	/** Device that is found and connected to */
 	private BluetoothDevice mBluetoothDevice = null;
 	/** State of auto-connect or manual connect */
-	boolean doAutoConnect = true;
+	private volatile boolean doAutoConnect = true;
 	/** Array adapter for manual connect */
 	private ArrayAdapter<String> mArrayAdapter = null;
+	/** Addresses of devices that have been connected to before */
+	private DeviceCache mDeviceCache = null;
+	/** True while trying a cached or bonded device before discovery */
+	private boolean isFastStart = false;
+	
+	/** Outgoing commands waiting to be written on the loop */
+	private CommandQueue mWriteQueue = new CommandQueue(CommandQueue.DEFAULT_DEPTH, CommandQueue.DropPolicy.DROP_OLDEST);
+	/** Measures how long commands take to reach the socket, may be null */
+	private volatile LatencyTracker mLatency = null;
+	/** Records every command written and every byte read, may be null */
+	private volatile FlightRecorder mRecorder = null;
+	/** Parses the bytes read from the device */
+	private final FrameParser mParser = new FrameParser();
+	
+	/** Milliseconds close() waits for the loop and the reader to end */
+	private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+	
+	/** Runs connection attempts, retries, writes and pings for every
+	 * connection this object makes.  Only reads have their own thread. */
+	private final IoLoop mLoop = new IoLoop("Bluetooth-io");
+	/** Spaces out connection attempts */
+	private Backoff mBackoff = new Backoff();
+	/** Attempts before giving up on a connection */
+	private int mMaxConnectAttempts = Connector.UNLIMITED_ATTEMPTS;
+	/** Reconnect automatically when a connection is lost */
+	private volatile boolean doAutoReconnect = true;
+	/** Milliseconds between pings, 0 when the heartbeat is off */
+	private volatile long mHeartbeatInterval = 0;
+	/** Unanswered pings in a row before a connection is dead */
+	private volatile int mHeartbeatMisses = Heartbeat.DEFAULT_MAX_MISSES;
+	
+	//Connection metrics
+	/** Attempts needed for the last connection */
+	private volatile int mLastConnectAttempts = 0;
+	/** Milliseconds the last connection took to make */
+	private volatile long mLastConnectMillis = 0;
+	/** Number of times a lost connection has been reconnected */
+	private volatile int mReconnectCount = 0;
 	
 	//Codes
 	/** Code for enabling bluetooth */
 	private static final int REQUEST_ENABLE_BT = 1;
-	
-	//Message codes
-	/** Code for connection complete */
-	public static final int MESSAGE_CONNECTION_COMPLETE = 1;
-	/** Code for the name of the currently connected device */
-	public static final int MESSAGE_DEVICE_NAME = 2;
-	/** Code indicating that a connection has been lost */
-	public static final int MESSAGE_CONNECTION_LOST = 3;
-	/** Code indicating connection failure */
-	public static final int MESSAGE_ERROR_CONNECTING = 4;
-	
-	//Bundle keys
-	/** Code for a bundle key, name of the device */
-	public static final String BUNDLE_DEVICE_NAME = "deviceName";
+	/** Attempts made on a cached or bonded device before falling back to discovery */
+	private static final int FAST_START_ATTEMPTS = 2;
 	
 	//Handles
 	/** The activity that contains this class */
 	private Activity parentActivity = null;	
-	/** Threads for running/creating connections */
-	private ConnectThread mConnectThread = null;
-	private ConnectedThread mConnectedThread = null;
-	/** Message handler for messages to the UI */
-	private Handler mHandler = null;
+	/** Makes connections on the loop, and the link running a connection.
+	 * Changed only while holding this object's lock. */
+	private volatile Connector mConnector = null;
+	private volatile Link mLink = null;
+	/** Pings the link, null when the heartbeat is off or the device has not sent telemetry yet */
+	private volatile Heartbeat mHeartbeat = null;
+	/** Starts the heartbeat on the first telemetry frame of each connection */
+	private final TelemetryListener mHeartbeatStarter = new TelemetryListener()
+	{
+		public void onTelemetry(TelemetryFrame frame)
+		{
+			if(mHeartbeat == null && mHeartbeatInterval > 0)
+				startHeartbeat();
+		}
+	};
+	
+	/** Where the connection is up to */
+	private final AtomicReference<State> mState = new AtomicReference<State>(State.IDLE);
+	/** Told how the connection changes */
+	private final CopyOnWriteArrayList<ConnectionListener> mListeners = new CopyOnWriteArrayList<ConnectionListener>();
+	/** True while the discovery receiver is registered */
+	private final AtomicBoolean isReceiverRegistered = new AtomicBoolean(false);
 	
 	//----------------------------------General--------------------------------------------
 	/** 
-	 * Constructor.
+	 * Constructor.  Call on the UI thread.
 	 * @param a - The activity that is calling using the class
-	 * @param h - A message handler, this will be called when the state of this 
-	 * 			  object changes and affects the activity
 	 */
-	public BluetoothClass(Activity a, Handler h)
+	public BluetoothClass(Activity a)
 	{
 		if(a == null)
 			throw new IllegalArgumentException("The parent activity can not be null.");
 		else
 			parentActivity = a;
 		
-		if(h == null)
-			throw new IllegalArgumentException("The handler can not be null.");
-		else
-			mHandler = h;
-		
 		doAutoConnect = true;
+		mDeviceCache = new DeviceCache(a);
+		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+		mParser.registerListener(mHeartbeatStarter);
 	}
 	
 	/**
@@ -93,33 +175,73 @@ public class BluetoothClass {
 	 */
 	public boolean isBluetoothAvailable()
 	{
-		if(BluetoothAdapter.getDefaultAdapter() == null)
-			return false;
-		else
-			return true;
+		return mBluetoothAdapter != null;
+	}
+	
+	/**
+	 * Add a listener told how the connection changes.  Safe to call from any thread.
+	 * @param listener - The listener
+	 */
+	public void registerListener(ConnectionListener listener)
+	{
+		if(listener == null)
+			throw new IllegalArgumentException("The listener can not be null.");
+		mListeners.addIfAbsent(listener);
+	}
+	
+	/**
+	 * Remove a listener.  Safe to call from any thread.
+	 * @param listener - No longer wants to hear about the connection
+	 */
+	public void unregisterListener(ConnectionListener listener)
+	{
+		mListeners.remove(listener);
 	}
 	
 	/**
-	 * Cancel all threads.
+	 * Close the connection and stop all work, leaving this object ready to
+	 * connect again.
 	 */
-	public void cancel()
+	public synchronized void cancel()
 	{
 		//Make sure that discovery is cancelled
-		mBluetoothAdapter.cancelDiscovery();
+		stopDiscovery();
 		
-		//Cancel the thread creating a connection
-		if(mConnectThread != null)
+		//Stop trying to make a connection
+		if(mConnector != null)
 		{
-			mConnectThread.cancel();
-			mConnectThread = null;
+			mConnector.cancel();
+			mConnector = null;
 		}
 		
-		//Cancel any thread currently running a connection
-		if(mConnectedThread != null)
+		//Cancel any link currently running a connection
+		stopHeartbeat();
+		if(mLink != null)
 		{
-			mConnectedThread.cancel();
-			mConnectedThread = null;
+			mLink.cancel();
+			mLink = null;
 		}
+		moveTo(State.IDLE);
+	}
+	
+	/**
+	 * Cancel everything and stop the loop, waiting for it and the reader
+	 * thread to end so none outlive the activity.  This object can not
+	 * connect again afterwards.
+	 */
+	public void close()
+	{
+		Link link;
+		synchronized (this) {
+			link = mLink;
+			cancel();
+			moveTo(State.CLOSED);
+		}
+		
+		//Wait outside the lock, the loop may be waiting for it in a callback
+		mLoop.shutdown(CLOSE_TIMEOUT_MILLIS);
+		if(link != null)
+			link.awaitTermination(CLOSE_TIMEOUT_MILLIS);
 	}
 	
 	//-------------------------------------------------------------------------------------
@@ -146,6 +268,83 @@ public class BluetoothClass {
 		return mRemoteDeviceName;
 	}
 	
+	/**
+	 * Set up the queue used for outgoing commands.  This can only be 
+	 * changed while there is no connection.
+	 * @param depth - Number of commands that can wait to be written
+	 * @param policy - What to do with a command when the queue is full
+	 */
+	public void setWriteQueue(int depth, CommandQueue.DropPolicy policy)
+	{
+		if(isConnected())
+			throw new IllegalStateException("The write queue can not be changed while connected.");
+		mWriteQueue = new CommandQueue(depth, policy);
+	}
+	
+	/**
+	 * Set the tracker told when commands are queued and written.
+	 * @param tracker - The tracker, may be null
+	 */
+	public void setLatencyTracker(LatencyTracker tracker)
+	{
+		mLatency = tracker;
+		Link link = mLink;
+		if(link != null)
+			link.setLatencyTracker(tracker);
+	}
+	
+	/**
+	 * Set the recorder given every command written and every byte read.
+	 * @param recorder - The recorder, may be null
+	 */
+	public void setFlightRecorder(FlightRecorder recorder)
+	{
+		mRecorder = recorder;
+		Link link = mLink;
+		if(link != null)
+			link.setFlightRecorder(recorder);
+	}
+	
+	/**
+	 * Set how connection attempts are retried.
+	 * @param backoff - Spaces out the attempts
+	 * @param maxAttempts - Attempts before giving up, or Connector.UNLIMITED_ATTEMPTS
+	 */
+	public void setRetry(Backoff backoff, int maxAttempts)
+	{
+		if(backoff == null)
+			throw new IllegalArgumentException("The backoff can not be null.");
+		mBackoff = backoff;
+		mMaxConnectAttempts = maxAttempts;
+	}
+	
+	/**
+	 * Turn on pinging the device, so a dead connection is noticed without
+	 * waiting for a read to fail.  The device must answer pings, see
+	 * DriveFrame.FLAG_PING, so pinging only starts once the device has
+	 * sent its first telemetry frame on a connection.  Firmware that never
+	 * sends telemetry does not speak the framed protocol and is never
+	 * pinged.  Takes effect on the next connection.
+	 * @param intervalMillis - Milliseconds between pings, or 0 to turn the heartbeat off
+	 * @param maxMisses - Unanswered pings in a row before the connection is dead
+	 */
+	public void setHeartbeat(long intervalMillis, int maxMisses)
+	{
+		if(intervalMillis < 0)
+			throw new IllegalArgumentException("The interval can not be negative.");
+		mHeartbeatInterval = intervalMillis;
+		mHeartbeatMisses = maxMisses;
+	}
+	
+	/**
+	 * Set whether a lost connection is remade automatically.
+	 * @param reconnect - True to reconnect, false to report the loss and stop
+	 */
+	public void setAutoReconnect(boolean reconnect)
+	{
+		doAutoReconnect = reconnect;
+	}
+	
 	
 	
 	//-------------------------------------------------------------------------------------
@@ -178,9 +377,8 @@ public class BluetoothClass {
 	 */
 	protected void createConnection()
 	{
-		//Try get adapter for bluetooth
-		if(mBluetoothAdapter == null)
-			getBluetoothAdapter();
+		if(mState.get() == State.CLOSED)
+			return;
 		
 		//If no adapter then we can not connect
 		if(mBluetoothAdapter == null)
@@ -192,20 +390,112 @@ public class BluetoothClass {
 		if(!mBluetoothAdapter.isEnabled())
 			mBluetoothAdapter.enable();
 		
+		if(doAutoConnect)
+		{
+			//Drop the connection we have, a new one is wanted
+			cancel();
+			
+			//Try the device we used last time, then a paired one, before a slow discovery
+			BluetoothDevice device = findKnownDevice();
+			if(device != null)
+			{
+				connectFast(device);
+				return;
+			}
+		}
+		else
+		{
+			//Paired devices can be listed straight away
+			Set<BluetoothDevice> bonded = mBluetoothAdapter.getBondedDevices();
+			if(bonded != null)
+				for(BluetoothDevice device : bonded)
+					mArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+		}
+		
+		startDiscovery();
+	}
+	
+	/**
+	 * Start discovering devices, found devices are handled by the reciever.
+	 * Listing devices for a manual connect leaves the state as it is.
+	 */
+	private void startDiscovery()
+	{
+		//Closed while the connection was being set up
+		if(doAutoConnect && !moveTo(State.DISCOVERING))
+			return;
+		
 		//Register a reciever for bluetooth device discovery
-		IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-		parentActivity.registerReceiver(mAutoConnectReciever, filter);
+		if(isReceiverRegistered.compareAndSet(false, true))
+		{
+			IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+			filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+			parentActivity.registerReceiver(mAutoConnectReciever, filter);
+		}
 		
 		//Start Discovery
 		mBluetoothAdapter.startDiscovery();		
 	}
 	
 	/**
-	 * Get the bluetooth adapter and store it.
+	 * Cancel discovery and stop listening for found devices.
 	 */
-	private void getBluetoothAdapter()
+	private void stopDiscovery()
 	{
-		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+		if(mBluetoothAdapter != null)
+			mBluetoothAdapter.cancelDiscovery();
+		if(isReceiverRegistered.compareAndSet(true, false))
+			parentActivity.unregisterReceiver(mAutoConnectReciever);
+	}
+	
+	/**
+	 * Find a device to connect to without discovery.  The address cached from
+	 * the last connection is used first, then a paired device with the right name.
+	 * @return - The device, or null if discovery is needed
+	 */
+	private BluetoothDevice findKnownDevice()
+	{
+		String address = mDeviceCache.getAddress(mRemoteDeviceName);
+		if(address != null && BluetoothAdapter.checkBluetoothAddress(address))
+			return mBluetoothAdapter.getRemoteDevice(address);
+		
+		Set<BluetoothDevice> bonded = mBluetoothAdapter.getBondedDevices();
+		if(bonded != null)
+		{
+			for(BluetoothDevice device : bonded)
+			{
+				if(mRemoteDeviceName.equals(device.getName()))
+					return device;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Try a few times to connect to a known device, falling back to
+	 * discovery if that fails.
+	 */
+	private synchronized void connectFast(BluetoothDevice device)
+	{
+		cancel();
+		if(!moveTo(State.CONNECTING))
+			return;
+		isFastStart = true;
+		startConnector(new RfcommTransport(device), FAST_START_ATTEMPTS);
+	}
+	
+	/**
+	 * Connect to a device found by discovery.  The receiver has already
+	 * moved from DISCOVERING to CONNECTING, so unlike connect() nothing is
+	 * cancelled on the way and the state never passes through IDLE.
+	 */
+	private synchronized void connectFound(BluetoothDevice device)
+	{
+		//Cancelled, closed or connected some other way since the device was found
+		if(mState.get() != State.CONNECTING || mConnector != null)
+			return;
+		isFastStart = false;
+		startConnector(new RfcommTransport(device), mMaxConnectAttempts);
 	}
 	
 	/**
@@ -224,11 +514,11 @@ public class BluetoothClass {
 			if(action.equals(BluetoothDevice.ACTION_FOUND))
 			{
 				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-				if(doAutoConnect == true && device.getName().equals(mRemoteDeviceName))
+				if(doAutoConnect == true && mRemoteDeviceName.equals(device.getName()))
 				{
-					mBluetoothAdapter.cancelDiscovery();
-					connect(device);
-					parentActivity.unregisterReceiver(mAutoConnectReciever);
+					//Only the first match connects, and only if nothing was started meanwhile
+					if(mState.compareAndSet(State.DISCOVERING, State.CONNECTING))
+						connectFound(device);
 				} else if(doAutoConnect == false)
 				{
 					//Fill adapter
@@ -237,13 +527,11 @@ public class BluetoothClass {
 			}
 			else if(action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED))
 			{
-				mBluetoothAdapter.cancelDiscovery();
-				parentActivity.unregisterReceiver(mAutoConnectReciever);
-				cancel();
+				stopDiscovery();
 				
-				//Send error message to UI
-				Message msg = mHandler.obtainMessage(BluetoothClass.MESSAGE_ERROR_CONNECTING);
-				mHandler.sendMessage(msg);
+				//The device was not found, unless a connection was started meanwhile
+				if(mState.compareAndSet(State.DISCOVERING, State.IDLE) && doAutoConnect)
+					notifyConnectFailed();
 			}
 		}
 	};
@@ -256,10 +544,7 @@ public class BluetoothClass {
 	 */
 	protected void connect(BluetoothDevice device)
 	{
-		cancel();
-		
-		mConnectThread = new ConnectThread(device);
-		mConnectThread.start();
+		connect(new RfcommTransport(device));
 	}
 	
 	/**
@@ -272,221 +557,426 @@ public class BluetoothClass {
 		connect(mBluetoothAdapter.getRemoteDevice(macAddress));
 	}
 	
+	/**
+	 * Connect over any transport.  This will cancel any open connection
+	 * or connection attempts currently running.
+	 * 
+	 * @param transport - The transport to connect with.
+	 */
+	public synchronized void connect(Transport transport)
+	{
+		cancel();
+		if(!moveTo(State.CONNECTING))
+			return;
+		isFastStart = false;
+		startConnector(transport, mMaxConnectAttempts);
+	}
 	
 	/**
-	 * This thread attempts to connect to the input device.  It
-	 * will run until a connection succeeds or the thread is cancelled.
+	 * Connect the transport on the loop, retrying with backoff.  The caller
+	 * holds the lock and has already moved to CONNECTING or RECONNECTING.
 	 */
-	private class ConnectThread extends Thread{
-		private final BluetoothSocket mSocket;
-		private final BluetoothDevice mDevice;
+	private void startConnector(Transport transport, int maxAttempts)
+	{
+		//Make sure discovery is cancelled, if not it can slow a connection
+		stopDiscovery();
 		
-		public ConnectThread(BluetoothDevice device) 
-		{
-			mDevice = device;
-			BluetoothSocket tmp = null;
-			
-			//Create a socket to the device
-			try
+		mConnector = new Connector(transport, mBackoff, maxAttempts, mLoop, this);
+		mConnector.start();
+	}
+	
+	/**
+	 * Called by the connector once the transport is connected.
+	 */
+	public void onConnected(Connector connector, Transport transport)
+	{
+		synchronized (this) {
+			//Ignore a connector that was cancelled while it connected
+			if(connector != mConnector)
 			{
-				tmp = device.createInsecureRfcommSocketToServiceRecord(SerialPortServiceClass_UUID);
+				transport.close();
+				return;
 			}
-			catch(IOException e)
+			
+			mLastConnectAttempts = connector.getAttempts();
+			mLastConnectMillis = connector.getElapsedMillis();
+			isFastStart = false;
+			
+			//Remember the address so the next connection can skip discovery, a device
+			//whose name is not known yet may not be the one that is wanted
+			if(transport instanceof RfcommTransport)
 			{
-				//TODO: Give an error to the main activity
+				BluetoothDevice device = ((RfcommTransport) transport).getDevice();
+				if(device.getName() != null)
+					mDeviceCache.put(device.getName(), device.getAddress());
 			}
 			
-			mSocket = tmp;
-			
+			if(!connected(transport))
+				return;
 		}
 		
-		/**
-		 * Run method.  This tries to connect the socket until success or
-		 * is cancelled.
-		 */
-		public void run()
-		{
-			//Make sure discovery is cancelled, if not it can slow a connection
-			mBluetoothAdapter.cancelDiscovery();
+		notifyConnected(transport.getName());
+	}
+	
+	/**
+	 * Called by the connector when it runs out of attempts.
+	 */
+	public void onConnectFailed(Connector connector, Transport transport)
+	{
+		synchronized (this) {
+			if(connector != mConnector)
+				return;
+			
+			mLastConnectAttempts = connector.getAttempts();
+			mLastConnectMillis = connector.getElapsedMillis();
 			
-			while(!mSocket.isConnected())
+			if(isFastStart)
 			{
-				// Make a connection to the BluetoothSocket
-	            try 
-	            {
-	                // This is a blocking call and will only return on a
-	                // successful connection or an exception
-	                mSocket.connect();
-	            } 
-	            catch (IOException e) 
-	            {
-	            	// Close the socket
-	                try
-	                {
-	                    mSocket.close();
-	                }
-	                catch (IOException e2)
-	                {  }	
-	            }
+				//The known device did not answer, look for it instead.  It may only be off,
+				//so its address is kept until it fails several times or turns up elsewhere.
+				isFastStart = false;
+				mConnector = null;
+				mDeviceCache.recordFailure(mRemoteDeviceName);
+				startDiscovery();
+				return;
 			}
-			connected(mSocket, mDevice);
-		}
-		
-		public void cancel() {
-			try 
-			{
-                mSocket.close();
-            } 
-			catch (IOException e) 
-			{ }
 			
+			cancel();
 		}
 		
+		notifyConnectFailed();
 	}
 
 	//-------------------------------------------------------------------------------------
 	
 	//-----------------------------------Manage a Connection-------------------------------
 	/**
-    * Start the ConnectedThread to begin managing a Bluetooth connection
-    * @param socket  The BluetoothSocket on which the connection was made
-    * @param device  The BluetoothDevice that has been connected
+    * Start a Link to begin managing a connection.  Called with the lock held.
+    * @param transport  The Transport on which the connection was made
+    * @return - False if this object was closed and the connection was dropped
     */
-   public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) 
+   private boolean connected(Transport transport) 
 	{
-	   	//Cancel the thread that completed the connection
-	   if(mConnectThread != null)
+	   	//Forget the connector that completed the connection
+	   if(mConnector != null)
 	   {
-		   //Do not call cancel because it closes the socket.
-		   //mConnectThread.cancel();
-		   mConnectThread = null;
+		   //Do not call cancel because it closes the transport.
+		   //mConnector.cancel();
+		   mConnector = null;
 	   }
 	   
-	   //Cancel any thread currently running a connection
-	   if(mConnectedThread != null)
+	   //Cancel any link currently running a connection
+	   stopHeartbeat();
+	   if(mLink != null)
 	   {
-		   mConnectedThread.cancel();
+		   mLink.cancel();
 	   }
-	   mConnectedThread = null;
-	   
-	   //Start the thread to manage the connection
-	   mConnectedThread = new ConnectedThread(socket);
-	   mConnectedThread.start();
+	   mLink = null;
 	   
-	   //Let the UI know we are connected
-	   Message msg = mHandler.obtainMessage(BluetoothClass.MESSAGE_CONNECTION_COMPLETE);
-	   mHandler.sendMessage(msg);
+	   //Start the link to manage the connection, old commands are stale
+	   mWriteQueue.clear();
+	   mParser.reset();
+	   Link link = new Link(transport, mWriteQueue, this, mLoop);
+	   link.setReceiver(mParser);
+	   link.setLatencyTracker(mLatency);
+	   link.setFlightRecorder(mRecorder);
+	   link.start();
+	   mLink = link;
 	   
-	   //Send the name of the connected device
-	   Message deviceNameMsg = mHandler.obtainMessage(BluetoothClass.MESSAGE_DEVICE_NAME);
-	   Bundle deviceNameBundle = new Bundle();
-	   deviceNameBundle.putCharSequence(BluetoothClass.BUNDLE_DEVICE_NAME, device.getName());
-	   deviceNameMsg.setData(deviceNameBundle);
-	   mHandler.sendMessage(deviceNameMsg);
+	   //Connected only once the link is set, so isConnected() means write() has a link
+	   if(!moveTo(State.CONNECTED))
+	   {
+		   cancel();
+		   return false;
+	   }
+	   return true;
 	}
-	
+   
    /**
-    * This thread runs during a connection with a remote device.
-    * It handles all incoming and outgoing transmissions.
+    * Called by the link when its transport fails.  If auto reconnect
+    * is on the same transport is connected again, otherwise the
+    * connection is reported as lost.
     */
-   private class ConnectedThread extends Thread
+   public void onLinkLost(Link link)
    {
-	   private final BluetoothSocket mSocket;
-	   private final InputStream mInStream;
-	   private final OutputStream mOutStream;
-	   
-	   public ConnectedThread(BluetoothSocket socket)
-	   {
-		   mSocket = socket;
-		   InputStream tmpIn = null;
-		   OutputStream tmpOut = null;
+	   boolean reconnect;
+	   synchronized (this) {
+		   if(link != mLink)
+			   return;
+		   stopHeartbeat();
 		   
-		   //Get the BluetoothSocket input and output streams
-		   try
-		   {
-			   tmpIn = socket.getInputStream();
-			   tmpOut = socket.getOutputStream();
-		   }
-		   catch(IOException e)
-		   {}
-		   
-		   mInStream = tmpIn;
-		   mOutStream = tmpOut;
+		   reconnect = doAutoReconnect && mState.compareAndSet(State.CONNECTED, State.RECONNECTING);
+		   if(reconnect)
+			   mLink = null;
+		   else
+			   cancel();
 	   }
 	   
-	   public void run()
+	   if(!reconnect)
 	   {
-		   byte[] buffer = new byte[1024];
-		   int bytes;
-		   
-		   //Keep listening while connected
-		   while(true)
-		   {
-			   try
-			   {
-				   bytes = mInStream.read(buffer);
-			   }
-			   catch(IOException e)
-			   {
-				   //Notify UI, cancel thread
-				   connectionLost();
-			   }
-		   }
+		   notifyConnectionLost();
+		   return;
 	   }
 	   
-	   /**
-	    * Write to the connected OutStream
-	    * @param buffer - The bytes to write
-	    */
-	   public void write(char buffer)
-	   {
-		   try
-		   {
-			   mOutStream.write(buffer);
-		   }
-		   catch(IOException e)
-		   {  }
+	   //Tell the listeners first so they hear about the reconnect before the connection
+	   notifyReconnecting();
+	   synchronized (this) {
+		   //Cancelled, closed or connected again while the listeners ran
+		   if(mState.get() != State.RECONNECTING || mConnector != null)
+			   return;
+		   mReconnectCount++;
+		   startConnector(link.getTransport(), mMaxConnectAttempts);
 	   }
+   }
+   
+   /**
+    * Called by the heartbeat when the device stops answering pings.  The
+    * link is dropped and handled as if its transport had failed.
+    */
+   public void onLinkDead(Heartbeat heartbeat)
+   {
+	   Link link = heartbeat.getLink();
+	   if(link != mLink)
+		   return;
 	   
-	   public void cancel()
+	   link.cancel();
+	   onLinkLost(link);
+   }
+   
+   /**
+    * Start pinging the current connection.  Called on the reader thread
+    * when telemetry shows the device speaks the framed protocol.
+    */
+   private synchronized void startHeartbeat()
+   {
+	   Link link = mLink;
+	   long interval = mHeartbeatInterval;
+	   if(mHeartbeat != null || interval <= 0 || link == null || mState.get() != State.CONNECTED)
+		   return;
+	   
+	   //A write stuck on the loop would also hold up the pings, so it counts as dead too
+	   link.setWriteTimeout(interval * mHeartbeatMisses);
+	   Heartbeat heartbeat = new Heartbeat(link, mLoop, interval, mHeartbeatMisses, this);
+	   mParser.setPongListener(heartbeat);
+	   heartbeat.start();
+	   mHeartbeat = heartbeat;
+   }
+   
+   /**
+    * Stop the heartbeat, if there is one.
+    */
+   private void stopHeartbeat()
+   {
+	   Heartbeat heartbeat = mHeartbeat;
+	   if(heartbeat != null)
 	   {
-		   try
-		   {
-			   mSocket.close();
-		   }
-		   catch(IOException e)
-		   {  }
+		   mParser.setPongListener(null);
+		   heartbeat.cancel();
+		   mHeartbeat = null;
 	   }
    }
    
    /**
-    * Write to the bluetooth device non-synchronized
-    * @param out - Bytes to write
+    * Queue bytes to be written to the bluetooth device.  This never 
+    * blocks, the bytes are written on the loop.
+    * @param buffer - Array holding the bytes to write
+    * @param offset - Start of the bytes in buffer
+    * @param length - Number of bytes to write, at most CommandQueue.MAX_COMMAND_LENGTH
+    * @return - True if the bytes were queued, false if they were dropped
+    */
+   public boolean write(byte[] buffer, int offset, int length)
+   {
+	   return write(buffer, offset, length, 0);
+   }
+   
+   /**
+    * Queue bytes that carry a touch to be written to the bluetooth device.
+    * The stamp goes into the queue with the bytes, so the enqueue and write
+    * stages are timed from the touch that produced this command.
+    * @param buffer - Array holding the bytes to write
+    * @param offset - Start of the bytes in buffer
+    * @param length - Number of bytes to write, at most CommandQueue.MAX_COMMAND_LENGTH
+    * @param touchNanos - LatencyTracker stamp of the touch, 0 if the bytes did not come from one
+    * @return - True if the bytes were queued, false if they were dropped
+    */
+   public boolean write(byte[] buffer, int offset, int length, long touchNanos)
+   {
+	   Link link = mLink;
+	   if(link == null)
+		   return false;
+	   
+	   boolean queued = link.write(buffer, offset, length, touchNanos);
+	   LatencyTracker latency = mLatency;
+	   if(latency != null && queued)
+		   latency.record(LatencyTracker.STAGE_ENQUEUE, touchNanos);
+	   return queued;
+   }
+   
+   /**
+    * Add a listener for telemetry sent by the device.  It is called on
+    * the reader thread.
+    * @param listener - Told about every valid telemetry frame
+    */
+   public void registerTelemetryListener(TelemetryListener listener)
+   {
+	   mParser.registerListener(listener);
+   }
+   
+   /**
+    * Remove a telemetry listener.
+    * @param listener - No longer wants telemetry
+    */
+   public void unregisterTelemetryListener(TelemetryListener listener)
+   {
+	   mParser.unregisterListener(listener);
+   }
+   
+   /**
+    * @return - The heartbeat pinging the current connection, for its round
+    * trip times, or null if there is none
     */
-   public void write(char out)
+   public Heartbeat getHeartbeat()
    {
-	   mConnectedThread.write(out);
+	   return mHeartbeat;
    }
    
    /**
-    * Connection lost.  Sends a message to the UI and closes the running threads.
+    * @return - The parser for bytes read from the device, for its counters
     */
-   private void connectionLost()
+   public FrameParser getParser()
    {
-	   cancel();
-	   Message msg = mHandler.obtainMessage(BluetoothClass.MESSAGE_CONNECTION_LOST);
-	   mHandler.sendMessage(msg);
+	   return mParser;
    }
    
    /**
-    * Is the device currently running a connection.
+    * @return - Number of commands that have been queued for writing
+    */
+   public long getEnqueuedCount()
+   {
+	   return mWriteQueue.getEnqueuedCount();
+   }
+   
+   /**
+    * @return - Number of queued commands that have been written to the connection,
+    * heartbeat pings are counted by the heartbeat instead
+    */
+   public long getWrittenCount()
+   {
+	   Link link = mLink;
+	   return link == null ? 0 : link.getWrittenCount();
+   }
+   
+   /**
+    * @return - Total time spent blocked writing queued commands to the current connection, in nanoseconds
+    */
+   public long getWriteNanos()
+   {
+	   Link link = mLink;
+	   return link == null ? 0 : link.getWriteNanos();
+   }
+   
+   /**
+    * @return - Number of commands waiting to be written
+    */
+   public int getQueueDepth()
+   {
+	   return mWriteQueue.size();
+   }
+   
+   /**
+    * @return - Number of commands dropped because the write queue was full
+    */
+   public long getDroppedCount()
+   {
+	   return mWriteQueue.getDroppedCount();
+   }
+   
+   /**
+    * @return - Number of attempts the last connection took
+    */
+   public int getLastConnectAttempts()
+   {
+	   return mLastConnectAttempts;
+   }
+   
+   /**
+    * @return - Milliseconds the last connection took to make, including retries
+    */
+   public long getLastConnectMillis()
+   {
+	   return mLastConnectMillis;
+   }
+   
+   /**
+    * @return - Number of times a lost connection has been remade
+    */
+   public int getReconnectCount()
+   {
+	   return mReconnectCount;
+   }
+   
+   /**
+    * Is the device currently running a connection.  This is a single
+    * volatile read, cheap enough to check before every command.
     * @return - True if the there is a connection running.
     */
    public boolean isConnected()
    {
-	   if(mConnectedThread != null)
-		   return true;
-	   return false;
+	   return mState.get() == State.CONNECTED;
+   }
+   
+   /**
+    * @return - Where the connection is up to
+    */
+   public State getState()
+   {
+	   return mState.get();
+   }
+   //-------------------------------------------------------------------------------------
+   
+   //-----------------------------------State---------------------------------------------
+   
+   /**
+    * Move to a state if TRANSITIONS allows it from the current one.  The
+    * move is a compare and set from the state that was checked, so a
+    * change made meanwhile by another thread is checked again.
+    * @param next - The state to move to
+    * @return - False if the move is not allowed from the current state
+    */
+   private boolean moveTo(State next)
+   {
+	   while(true)
+	   {
+		   State current = mState.get();
+		   if(!TRANSITIONS.get(current).contains(next))
+			   return false;
+		   if(current == next || mState.compareAndSet(current, next))
+			   return true;
+	   }
+   }
+   
+   private void notifyConnected(String deviceName)
+   {
+	   for(ConnectionListener listener : mListeners)
+		   listener.onConnected(deviceName);
+   }
+   
+   private void notifyReconnecting()
+   {
+	   for(ConnectionListener listener : mListeners)
+		   listener.onReconnecting();
+   }
+   
+   private void notifyConnectionLost()
+   {
+	   for(ConnectionListener listener : mListeners)
+		   listener.onConnectionLost();
+   }
+   
+   private void notifyConnectFailed()
+   {
+	   for(ConnectionListener listener : mListeners)
+		   listener.onConnectFailed();
    }
    //-------------------------------------------------------------------------------------
 }
@@ -0,0 +1,113 @@
+package realms.jarlaxle.bluetoothutility;
+
+import java.util.Locale;
+
+import realms.jarlaxle.transport.LinkManager;
+import android.bluetooth.BluetoothAdapter;
+
+/** Drives several bluetooth robots at once.  Each robot is added by its
+ * MAC address and gets its own connection, see LinkManager.  Changes are
+ * told to a LinkManager.Listener with the robot's address, on that
+ * robot's threads, so post to the UI thread before touching views.
+ */
+public class BluetoothFleet {
+	
+	/** The adapter on the phone */
+	private final BluetoothAdapter mBluetoothAdapter;
+	/** Runs the connections */
+	private final LinkManager mManager;
+	
+	/**
+	 * Constructor.
+	 * @param listener - Told when a robot connects, is lost or can not be reached
+	 */
+	public BluetoothFleet(LinkManager.Listener listener)
+	{
+		if(listener == null)
+			throw new IllegalArgumentException("The listener can not be null.");
+		
+		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+		mManager = new LinkManager(listener);
+	}
+	
+	/**
+	 * Add a robot and start connecting to it.
+	 * @param macAddress - The address of the robot
+	 * @return - False if the address is not valid or the robot is already added
+	 */
+	public boolean add(String macAddress)
+	{
+		if(mBluetoothAdapter == null)
+			return false;
+		
+		String address = normalize(macAddress);
+		if(!BluetoothAdapter.checkBluetoothAddress(address))
+			return false;
+		
+		//Discovery slows connections down
+		mBluetoothAdapter.cancelDiscovery();
+		return mManager.add(address, new RfcommTransport(mBluetoothAdapter.getRemoteDevice(address)));
+	}
+	
+	/**
+	 * Disconnect a robot and forget it.
+	 * @param macAddress - The address of the robot
+	 */
+	public void remove(String macAddress)
+	{
+		mManager.remove(normalize(macAddress));
+	}
+	
+	/**
+	 * Queue bytes for one robot.  This never blocks.  Every write() and
+	 * writeAll() must come from the same thread, see LinkManager.
+	 * @param macAddress - The address of the robot
+	 * @param buffer - Array holding the bytes to write
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes to write
+	 * @return - True if the bytes were queued
+	 */
+	public boolean write(String macAddress, byte[] buffer, int offset, int length)
+	{
+		return mManager.write(normalize(macAddress), buffer, offset, length);
+	}
+	
+	/**
+	 * Queue the same bytes for every connected robot.  This never blocks.
+	 * Every write() and writeAll() must come from the same thread.
+	 * @param buffer - Array holding the bytes to write
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes to write
+	 * @return - Number of robots the bytes were queued for
+	 */
+	public int writeAll(byte[] buffer, int offset, int length)
+	{
+		return mManager.writeAll(buffer, offset, length);
+	}
+	
+	/**
+	 * Disconnect every robot.
+	 */
+	public void cancel()
+	{
+		mManager.cancel();
+	}
+	
+	/**
+	 * @return - The manager running the connections, for settings and counters
+	 */
+	public LinkManager getManager()
+	{
+		return mManager;
+	}
+	
+	/**
+	 * Android only accepts upper case addresses.
+	 */
+	private static String normalize(String macAddress)
+	{
+		if(macAddress == null)
+			throw new IllegalArgumentException("The address can not be null.");
+		return macAddress.toUpperCase(Locale.US);
+	}
+}
@@ -0,0 +1,30 @@
+package realms.jarlaxle.bluetoothutility;
+
+/** Told how the connection made by a BluetoothClass changes.  The methods
+ * are called on the I/O loop, the link's reader thread, or the UI thread
+ * when discovery ends, and never while the BluetoothClass holds a lock.  Post to the UI thread
+ * before touching views.
+ */
+public interface ConnectionListener {
+	
+	/**
+	 * The device is connected and commands can be written to it.
+	 * @param deviceName - Name of the connected device
+	 */
+	public void onConnected(String deviceName);
+	
+	/**
+	 * The connection was lost and is being remade.
+	 */
+	public void onReconnecting();
+	
+	/**
+	 * The connection was lost and auto reconnect is off.
+	 */
+	public void onConnectionLost();
+	
+	/**
+	 * No device was found, or the connection attempts ran out.
+	 */
+	public void onConnectFailed();
+}
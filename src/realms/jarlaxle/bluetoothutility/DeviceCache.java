@@ -0,0 +1,105 @@
+package realms.jarlaxle.bluetoothutility;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/** Remembers the address of the last device that was connected to for
+ * each device name, so the next connection can skip discovery.  The
+ * cache is kept in the app's shared preferences.  An address is only
+ * forgotten after several failed connections in a row, since one failure
+ * is more often a device that is off or out of range than one that moved.
+ */
+public class DeviceCache {
+
+	/** Name of the shared preferences file holding the cache */
+	public static final String PREFERENCES_NAME = "bluetoothDeviceCache";
+	/** Failed connections in a row to a cached address before it is forgotten */
+	public static final int MAX_FAILURES = 3;
+	
+	/** Added to a device name to make the key its failure count is stored under */
+	private static final String FAILURES_SUFFIX = "#failures";
+	
+	/** Where the addresses are stored, keyed by device name */
+	private final SharedPreferences mPreferences;
+	
+	/**
+	 * Constructor.
+	 * @param context - Context used to open the shared preferences
+	 */
+	public DeviceCache(Context context)
+	{
+		if(context == null)
+			throw new IllegalArgumentException("The context can not be null.");
+		mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+	}
+	
+	/**
+	 * Get the address last connected to for a device name.
+	 * @param name - Name of the device
+	 * @return - The MAC address, or null if there is none
+	 */
+	public String getAddress(String name)
+	{
+		if(name == null)
+			return null;
+		return mPreferences.getString(name, null);
+	}
+	
+	/**
+	 * Remember the address of a device that was connected to, and clear
+	 * its failures.
+	 * @param name - Name of the device
+	 * @param address - The MAC address of the device
+	 */
+	public void put(String name, String address)
+	{
+		if(name == null || address == null)
+			return;
+		if(address.equals(mPreferences.getString(name, null)) && getFailures(name) == 0)
+			return;
+		mPreferences.edit().putString(name, address).remove(name + FAILURES_SUFFIX).apply();
+	}
+	
+	/**
+	 * Count a failed connection to the cached address for a device name.
+	 * After MAX_FAILURES in a row the address is forgotten.
+	 * @param name - Name of the device
+	 * @return - True if the address was forgotten
+	 */
+	public boolean recordFailure(String name)
+	{
+		if(getAddress(name) == null)
+			return false;
+		
+		int failures = getFailures(name) + 1;
+		if(failures >= MAX_FAILURES)
+		{
+			remove(name);
+			return true;
+		}
+		mPreferences.edit().putInt(name + FAILURES_SUFFIX, failures).apply();
+		return false;
+	}
+	
+	/**
+	 * @param name - Name of the device
+	 * @return - Failed connections in a row to the cached address
+	 */
+	public int getFailures(String name)
+	{
+		if(name == null)
+			return 0;
+		return mPreferences.getInt(name + FAILURES_SUFFIX, 0);
+	}
+	
+	/**
+	 * Forget the address for a device name and its failures.
+	 * @param name - Name of the device
+	 */
+	public void remove(String name)
+	{
+		if(name == null)
+			return;
+		mPreferences.edit().remove(name).remove(name + FAILURES_SUFFIX).apply();
+	}
+}
@@ -0,0 +1,112 @@
+package realms.jarlaxle.bluetoothutility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import realms.jarlaxle.transport.Transport;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+/** A transport over a Bluetooth RFCOMM socket using the serial port profile.
+ */
+public class RfcommTransport implements Transport {
+
+	/** This is the UUID for serial port service connections */
+	public static final UUID SerialPortServiceClass_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+	
+	/** The device to connect to */
+	private final BluetoothDevice mDevice;
+	
+	/** The socket, null when not created */
+	private volatile BluetoothSocket mSocket = null;
+	private volatile InputStream mInStream = null;
+	private volatile OutputStream mOutStream = null;
+	
+	/**
+	 * Constructor.
+	 * @param device - The device to connect to
+	 */
+	public RfcommTransport(BluetoothDevice device)
+	{
+		if(device == null)
+			throw new IllegalArgumentException("The device can not be null.");
+		mDevice = device;
+	}
+	
+	/**
+	 * Connect to the device.  Discovery should be cancelled first
+	 * because it slows down connecting.  A closed socket can not be
+	 * reconnected, so a new socket is made for every attempt.
+	 */
+	public void connect() throws IOException
+	{
+		close();
+		BluetoothSocket socket = mDevice.createInsecureRfcommSocketToServiceRecord(SerialPortServiceClass_UUID);
+		mSocket = socket;
+		
+		try
+		{
+			// This is a blocking call and will only return on a
+			// successful connection or an exception
+			socket.connect();
+			mInStream = socket.getInputStream();
+			mOutStream = socket.getOutputStream();
+		}
+		catch(IOException e)
+		{
+			close();
+			throw e;
+		}
+	}
+	
+	public void write(byte[] buffer, int offset, int length) throws IOException
+	{
+		OutputStream out = mOutStream;
+		if(out == null)
+			throw new IOException("Not connected");
+		out.write(buffer, offset, length);
+	}
+	
+	public int read(byte[] buffer, int offset, int length) throws IOException
+	{
+		InputStream in = mInStream;
+		if(in == null)
+			throw new IOException("Not connected");
+		return in.read(buffer, offset, length);
+	}
+	
+	public void close()
+	{
+		BluetoothSocket socket = mSocket;
+		if(socket != null)
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{  }
+		}
+	}
+	
+	public boolean isConnected()
+	{
+		BluetoothSocket socket = mSocket;
+		return socket != null && socket.isConnected();
+	}
+	
+	public String getName()
+	{
+		return mDevice.getName();
+	}
+	
+	/**
+	 * @return - The device this transport connects to
+	 */
+	public BluetoothDevice getDevice()
+	{
+		return mDevice;
+	}
+}
@@ -0,0 +1,118 @@
+package realms.jarlaxle.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A fixed size histogram of latencies in nanoseconds.  Buckets are
+ * spaced logarithmically with 16 linear steps per power of two, so any
+ * value is recorded to within about 6%.  Recording is lock-free and never
+ * allocates, so it is safe on the render and I/O threads.
+ */
+public class LatencyHistogram {
+
+	/** Linear steps per power of two, as a number of bits */
+	private static final int SUB_BITS = 4;
+	/** Linear steps per power of two */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/** Number of buckets needed to cover every positive long */
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+	
+	/** Count of values in each bucket */
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	/** Count of all values */
+	private final AtomicLong mTotal = new AtomicLong();
+	/** Largest value recorded */
+	private final AtomicLong mMax = new AtomicLong();
+	
+	/**
+	 * Record a latency.  Negative values are ignored.
+	 * @param nanos - The latency in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		if(nanos < 0)
+			return;
+		mCounts.incrementAndGet(bucketFor(nanos));
+		mTotal.incrementAndGet();
+		
+		long max = mMax.get();
+		while(nanos > max && !mMax.compareAndSet(max, nanos))
+			max = mMax.get();
+	}
+	
+	/**
+	 * Find a percentile.
+	 * @param percentile - Between 0 and 100, for example 99.9
+	 * @return - The latency in nanoseconds that this percentage of values are at or below,
+	 *           or 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long total = mTotal.get();
+		if(total == 0)
+			return 0;
+		
+		long target = (long) Math.ceil(total * percentile / 100.0);
+		if(target < 1)
+			target = 1;
+		
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			seen += mCounts.get(i);
+			if(seen >= target)
+				return Math.min(highestValueIn(i), mMax.get());
+		}
+		return mMax.get();
+	}
+	
+	/**
+	 * @return - Number of values recorded
+	 */
+	public long getCount()
+	{
+		return mTotal.get();
+	}
+	
+	/**
+	 * @return - Largest value recorded, in nanoseconds
+	 */
+	public long getMax()
+	{
+		return mMax.get();
+	}
+	
+	/**
+	 * Clear every bucket.  Values recorded at the same time may be lost.
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < BUCKETS; i++)
+			mCounts.set(i, 0);
+		mTotal.set(0);
+		mMax.set(0);
+	}
+	
+	/**
+	 * @return - The bucket a value falls in
+	 */
+	private static int bucketFor(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+	}
+	
+	/**
+	 * @return - The largest value that falls in a bucket
+	 */
+	private static long highestValueIn(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
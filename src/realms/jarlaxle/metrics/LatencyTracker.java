@@ -0,0 +1,109 @@
+package realms.jarlaxle.metrics;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/** Measures how long a touch takes to reach each stage of the control
+ * pipeline.  The touch marks the start time, which travels with the
+ * position it produced, and every later stage records the time since then
+ * into its own histogram.  Positions and commands that did not come from a
+ * touch, such as recentering and keepalives, carry 0 and are not recorded.
+ * One tracker is shared by the view, the activity and the connection.
+ */
+public class LatencyTracker {
+
+	//Stages, in pipeline order
+	/** The touch has been clamped to the circle */
+	public static final int STAGE_CLAMP = 0;
+	/** The circle's listeners have been called from the render thread */
+	public static final int STAGE_DISPATCH = 1;
+	/** The position has been mixed into motor values */
+	public static final int STAGE_MIXER = 2;
+	/** The command has been queued for writing */
+	public static final int STAGE_ENQUEUE = 3;
+	/** The command has been written to the socket */
+	public static final int STAGE_WRITE = 4;
+	/** Number of stages */
+	public static final int STAGE_COUNT = 5;
+	
+	/** Names of the stages, used in the report */
+	private static final String[] STAGE_NAMES = { "clamp", "dispatch", "mixer", "enqueue", "write" };
+	
+	/** Latencies since the touch for each stage */
+	private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+	
+	public LatencyTracker()
+	{
+		for(int i = 0; i < STAGE_COUNT; i++)
+			mHistograms[i] = new LatencyHistogram();
+	}
+	
+	/**
+	 * Mark that a touch has just arrived.
+	 * @return - The stamp to carry with the touch's position, never 0
+	 */
+	public long markTouch()
+	{
+		long now = System.nanoTime();
+		return now == 0 ? 1 : now;
+	}
+	
+	/**
+	 * Record that a stage has been reached for a given touch.
+	 * @param stage - One of the STAGE constants
+	 * @param touchNanos - System.nanoTime() of the touch, 0 to record nothing
+	 */
+	public void record(int stage, long touchNanos)
+	{
+		if(touchNanos != 0)
+			mHistograms[stage].record(System.nanoTime() - touchNanos);
+	}
+	
+	/**
+	 * @param stage - One of the STAGE constants
+	 * @return - The histogram for that stage
+	 */
+	public LatencyHistogram getHistogram(int stage)
+	{
+		return mHistograms[stage];
+	}
+	
+	/**
+	 * Clear every histogram.
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < STAGE_COUNT; i++)
+			mHistograms[i].reset();
+	}
+	
+	/**
+	 * Write a table of count, p50, p99, p99.9 and max for every stage,
+	 * in microseconds since the touch.
+	 */
+	public void writeReport(Writer writer)
+	{
+		PrintWriter out = new PrintWriter(writer);
+		out.println(String.format(Locale.US, "%-10s %10s %10s %10s %10s %10s", "stage", "count", "p50 us", "p99 us", "p99.9 us", "max us"));
+		for(int i = 0; i < STAGE_COUNT; i++)
+		{
+			LatencyHistogram histogram = mHistograms[i];
+			out.println(String.format(Locale.US, "%-10s %10d %10.1f %10.1f %10.1f %10.1f", STAGE_NAMES[i], histogram.getCount(),
+					histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0,
+					histogram.getPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0));
+		}
+		out.flush();
+	}
+	
+	/**
+	 * @return - The report from writeReport() as a string
+	 */
+	public String getReport()
+	{
+		StringWriter writer = new StringWriter();
+		writeReport(writer);
+		return writer.toString();
+	}
+}
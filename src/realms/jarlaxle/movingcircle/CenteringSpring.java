@@ -0,0 +1,168 @@
+package realms.jarlaxle.movingcircle;
+
+/** Pulls a released knob back to the centre like a critically damped
+ * spring: as fast as possible without overshooting.  The motion depends
+ * only on the time that has passed, not on how often step() is called, so
+ * the knob comes back the same way at any frame rate.
+ * <p>
+ * Everything per frame is integer arithmetic.  Positions are pixels and
+ * speeds are pixels per tick, both with 16 fractional bits, and a tick is
+ * 2^20 nanoseconds, about a millisecond.  Moving a spring forward by k
+ * ticks has an exact solution, so each frame takes one step using a table
+ * of the decay for every k, built once in the constructor.
+ * <p>
+ * Not thread safe, it is meant to be used from the render thread only.
+ */
+public class CenteringSpring {
+	
+	/** Stiffness used if none is set, in radians per second.  The knob is
+	 * within 2% of the centre after 6 / stiffness seconds. */
+	public static final double DEFAULT_STIFFNESS = 15;
+	
+	/** A tick is 2^TICK_SHIFT nanoseconds */
+	private static final int TICK_SHIFT = 20;
+	private static final double TICK_SECONDS = (1 << TICK_SHIFT) / 1e9;
+	
+	/** Fixed point */
+	private static final int FRACTION_BITS = 16;
+	private static final long ONE = 1L << FRACTION_BITS;
+	private static final long HALF = ONE >> 1;
+	
+	/** Most ticks taken in one step, longer gaps are taken in pieces */
+	private static final int MAX_TICKS = 256;
+	/** Speed under which the knob stops once it is within half a pixel, a few pixels a second */
+	private static final long SETTLE_SPEED = ONE >> 8;
+	
+	/** Stiffness per tick, in fixed point */
+	private final long stiffness;
+	/** Decay over k ticks, e^(-stiffness * k), in fixed point */
+	private final long[] decay = new long[MAX_TICKS + 1];
+	
+	/** Offset from the centre, positive to the right and towards the top, in fixed point */
+	private long x;
+	private long y;
+	/** Speed, in fixed point pixels per tick */
+	private long speedX;
+	private long speedY;
+	
+	/** Is the knob on its way back */
+	private boolean isMoving = false;
+	/** Time of the last step, in nanoseconds */
+	private long lastNanos;
+	/** Nanoseconds not yet taken because they make up less than a tick */
+	private long pendingNanos;
+	
+	/**
+	 * Constructor using the default stiffness.
+	 */
+	public CenteringSpring()
+	{
+		this(DEFAULT_STIFFNESS);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param stiffness - How hard the spring pulls, in radians per second
+	 */
+	public CenteringSpring(double stiffness)
+	{
+		if(stiffness <= 0)
+			throw new IllegalArgumentException("The stiffness must be positive.");
+		this.stiffness = Math.round(ONE * stiffness * TICK_SECONDS);
+		for(int k = 0; k <= MAX_TICKS; k++)
+			decay[k] = Math.round(ONE * Math.exp(-stiffness * k * TICK_SECONDS));
+	}
+	
+	/**
+	 * Let go of the knob.  It starts back from rest.
+	 * @param offsetX - Offset from the centre, positive to the right
+	 * @param offsetY - Offset from the centre, positive towards the top
+	 * @param nanos - Current time, in nanoseconds
+	 */
+	public void release(int offsetX, int offsetY, long nanos)
+	{
+		x = (long) offsetX << FRACTION_BITS;
+		y = (long) offsetY << FRACTION_BITS;
+		speedX = 0;
+		speedY = 0;
+		lastNanos = nanos;
+		pendingNanos = 0;
+		isMoving = offsetX != 0 || offsetY != 0;
+	}
+	
+	/**
+	 * Move the knob forward to the current time.
+	 * @param nanos - Current time, in nanoseconds
+	 * @return - The offset, packed as described in CircleOffset, positive to the right and towards the top
+	 */
+	public long step(long nanos)
+	{
+		if(isMoving)
+		{
+			long elapsed = nanos - lastNanos;
+			lastNanos = nanos;
+			if(elapsed > 0)
+				pendingNanos += elapsed;
+			long ticks = pendingNanos >> TICK_SHIFT;
+			pendingNanos &= (1L << TICK_SHIFT) - 1;
+			
+			while(ticks > 0 && isMoving)
+			{
+				int k = (int) Math.min(ticks, MAX_TICKS);
+				advance(k);
+				ticks -= k;
+			}
+		}
+		return getOffset();
+	}
+	
+	/**
+	 * Take k ticks at once.  A critically damped spring moves as
+	 * x(t) = (x + c t) e^(-w t) with c = v + w x, so its speed is
+	 * v(t) = (v - w c t) e^(-w t).
+	 */
+	private void advance(int k)
+	{
+		long e = decay[k];
+		
+		long c = speedX + (stiffness * x >> FRACTION_BITS);
+		x = (x + c * k) * e >> FRACTION_BITS;
+		speedX = (speedX - (stiffness * c >> FRACTION_BITS) * k) * e >> FRACTION_BITS;
+		
+		c = speedY + (stiffness * y >> FRACTION_BITS);
+		y = (y + c * k) * e >> FRACTION_BITS;
+		speedY = (speedY - (stiffness * c >> FRACTION_BITS) * k) * e >> FRACTION_BITS;
+		
+		//Settle exactly on the centre so the render thread can go idle
+		if(Math.abs(x) < HALF && Math.abs(y) < HALF && Math.abs(speedX) < SETTLE_SPEED && Math.abs(speedY) < SETTLE_SPEED)
+			stop();
+	}
+	
+	/**
+	 * Put the knob on the centre and stop it.
+	 */
+	public void stop()
+	{
+		x = 0;
+		y = 0;
+		speedX = 0;
+		speedY = 0;
+		isMoving = false;
+	}
+	
+	/**
+	 * @return - True while the knob is on its way back
+	 */
+	public boolean isMoving()
+	{
+		return isMoving;
+	}
+	
+	/**
+	 * @return - The offset rounded to whole pixels, packed as described in CircleOffset
+	 */
+	public long getOffset()
+	{
+		return CircleOffset.pack((int) ((x + HALF) >> FRACTION_BITS), (int) ((y + HALF) >> FRACTION_BITS));
+	}
+}
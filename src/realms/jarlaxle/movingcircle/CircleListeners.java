@@ -0,0 +1,73 @@
+package realms.jarlaxle.movingcircle;
+
+/** The listeners of a circle view, shared by the Canvas and GL views.
+ * The array is never changed once published, registering and
+ * unregistering replace it, so the drawing thread can walk it without
+ * locks or allocation.
+ */
+final class CircleListeners {
+	
+	/** Current listeners */
+	private volatile MovingCircleListener[] listeners = new MovingCircleListener[0];
+	
+	/** Lock held while the listeners array is being replaced */
+	private final Object listenersLock = new Object();
+	
+	/**
+	 * Add a listener.  Adding one that is already registered does nothing.
+	 * @param listener - the object that wants calls from this circle
+	 */
+	void register(MovingCircleListener listener)
+	{
+		if(listener == null)
+			throw new IllegalArgumentException("The listener can not be null.");
+		
+		synchronized (listenersLock) {
+			MovingCircleListener[] current = listeners;
+			for(int i = 0; i < current.length; i++)
+				if(current[i] == listener)
+					return;
+			
+			MovingCircleListener[] updated = new MovingCircleListener[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = listener;
+			listeners = updated;
+		}
+	}
+	
+	/**
+	 * Remove a listener.
+	 * @param listener - the object that no longer wants to recieve updates
+	 */
+	void unregister(MovingCircleListener listener)
+	{
+		synchronized (listenersLock) {
+			MovingCircleListener[] current = listeners;
+			for(int i = 0; i < current.length; i++)
+			{
+				if(current[i] == listener)
+				{
+					MovingCircleListener[] updated = new MovingCircleListener[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, i);
+					System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+					listeners = updated;
+					return;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Call all of the listeners with the new circle location.
+	 * @param touchNanos - Stamp of the touch that moved the circle, 0 if it moved on its own
+	 */
+	void call(int X, int Y, long touchNanos)
+	{
+		//Walk a snapshot by index so nothing is locked or allocated
+		MovingCircleListener[] snapshot = listeners;
+		for(int i = 0; i < snapshot.length; i++)
+		{
+			snapshot[i].onCircleMoved(X, Y, touchNanos);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package realms.jarlaxle.movingcircle;
+
+/** The arithmetic behind moving the circle, kept apart from the
+ * drawing code so it does not depend on Android and can be measured
+ * on its own.  Offsets are returned packed as described in CircleOffset.
+ */
+public final class CircleMath {
+
+	private CircleMath()
+	{}
+	
+	/**
+	 * Keep a touch inside the circle of movement.  Points outside the
+	 * radius are pulled back along the line to the centre.  Points inside
+	 * cost two multiplies and a compare.  Points outside are scaled by
+	 * radius / distance, with the inverse square root estimated from the
+	 * bits of a float and refined twice by Newton's method, so there is no
+	 * division and a touch straight above or below the centre is handled
+	 * like any other.
+	 * @param dx - Horizontal distance of the touch from the centre
+	 * @param dy - Vertical distance of the touch from the centre
+	 * @param radius - Radius of movement
+	 * @return - The clamped offset, in the same orientation as dx and dy
+	 */
+	public static long clamp(int dx, int dy, int radius)
+	{
+		long distance2 = (long) dx * dx + (long) dy * dy;
+		if(distance2 <= (long) radius * radius)
+			return CircleOffset.pack(dx, dy);
+		
+		//Truncating towards zero keeps the result on or inside the rim
+		float scale = radius * inverseSqrt(distance2);
+		return CircleOffset.pack((int) (dx * scale), (int) (dy * scale));
+	}
+	
+	/**
+	 * Estimate 1 / sqrt(value) without dividing.  Accurate to a few parts
+	 * in a million, far finer than a pixel at any radius the view uses.
+	 * @param value - A positive value
+	 * @return - The inverse square root of value
+	 */
+	static float inverseSqrt(float value)
+	{
+		float half = 0.5f * value;
+		float estimate = Float.intBitsToFloat(0x5f3759df - (Float.floatToRawIntBits(value) >> 1));
+		estimate *= 1.5f - half * estimate * estimate;
+		estimate *= 1.5f - half * estimate * estimate;
+		return estimate;
+	}
+}
@@ -0,0 +1,43 @@
+package realms.jarlaxle.movingcircle;
+
+/** Packs a circle offset into a single long so that it can be
+ * returned and passed around without allocating.  The x offset is 
+ * held in the high 32 bits and the y offset in the low 32 bits.
+ */
+public final class CircleOffset {
+
+	/** Value used when there is no offset, for example before the circle exists */
+	public static final long NONE = Long.MIN_VALUE;
+	
+	private CircleOffset()
+	{}
+	
+	/**
+	 * Pack an offset.
+	 * @param x - The x offset, positive to the right
+	 * @param y - The y offset, positive towards the top
+	 * @return - The packed offset
+	 */
+	public static long pack(int x, int y)
+	{
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * @param offset - A packed offset
+	 * @return - The x offset held in it
+	 */
+	public static int x(long offset)
+	{
+		return (int) (offset >> 32);
+	}
+	
+	/**
+	 * @param offset - A packed offset
+	 * @return - The y offset held in it
+	 */
+	public static int y(long offset)
+	{
+		return (int) offset;
+	}
+}
@@ -0,0 +1,45 @@
+package realms.jarlaxle.movingcircle;
+
+import realms.jarlaxle.metrics.LatencyTracker;
+
+/** What the fragment needs from a view that draws the moving circle, so
+ * it does not care whether the circle is drawn with Canvas or OpenGL.
+ */
+public interface CircleSurface {
+	
+	/**
+	 * Add a listener.  All listeners will be called whenever the circles location changes
+	 * @param listener - the object that wants calls from this circle
+	 */
+	public void registerListener(MovingCircleListener listener);
+	
+	/**
+	 * Remove a listener.
+	 * @param listener - the object that no longer wants to recieve updates
+	 */
+	public void unregisterListener(MovingCircleListener listener);
+	
+	/**
+	 * Set the tracker used to time touches.
+	 * @param tracker - The tracker, may be null
+	 */
+	public void setLatencyTracker(LatencyTracker tracker);
+	
+	/**
+	 * Get circle offset.  Towards the right of the screen is a positive x
+	 * offset and towards the top is a positive y offset.
+	 * @return - offset of drawn circle from center of screen, packed as described
+	 * in CircleOffset, or CircleOffset.NONE if the circle is not running
+	 */
+	public long getCircleOffset();
+	
+	/**
+	 * @return - Statistics on how long frames take to draw, null if nothing is being drawn
+	 */
+	public FrameTimer getFrameTimer();
+	
+	/**
+	 * @return - Short name of the renderer, used in reports
+	 */
+	public String getRendererName();
+}
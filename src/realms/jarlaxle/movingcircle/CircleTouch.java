@@ -0,0 +1,118 @@
+package realms.jarlaxle.movingcircle;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import realms.jarlaxle.metrics.LatencyTracker;
+
+import android.view.MotionEvent;
+
+/** The touch handling shared by the Canvas and GL views.  The UI thread
+ * hands it every touch event, each sample batched into the event goes
+ * through the touch filter, oldest first, and only the newest filtered
+ * position is kept.  The drawing thread takes that position once per
+ * frame, however many samples arrived.
+ */
+final class CircleTouch {
+	
+	/** Smooths the touch samples, only used on the UI thread */
+	private final TouchFilter filter = new TouchFilter();
+	
+	/** Newest filtered touch in screen coordinates, packed as described in CircleOffset,
+	 * or CircleOffset.NONE once the drawing thread has taken it */
+	private final AtomicLong target = new AtomicLong(CircleOffset.NONE);
+	
+	/** Stamp from LatencyTracker.markTouch() of the touch that produced target, 0 if none.
+	 * Written before target, so a take can only pair a position with a newer stamp */
+	private volatile long targetStamp = 0;
+	
+	/** Stamp of the position returned by the last take(), only used on the drawing thread */
+	private long takenStamp = 0;
+	
+	/** False while the circle is held, true once it is let go and should go back to the centre */
+	private volatile boolean isReleased = true;
+	
+	/** Measures how long touches take to move through the pipeline, may be null */
+	private volatile LatencyTracker latency;
+	
+	/**
+	 * Set the tracker used to time touches.
+	 * @param tracker - The tracker, may be null
+	 */
+	void setLatencyTracker(LatencyTracker tracker)
+	{
+		latency = tracker;
+	}
+	
+	/**
+	 * @return - The tracker used to time touches, may be null
+	 */
+	LatencyTracker getLatencyTracker()
+	{
+		return latency;
+	}
+	
+	/**
+	 * Filter a touch event and publish the newest position.  Called on the
+	 * UI thread, the view then wakes its drawing thread.
+	 * @param event - The event passed to the view
+	 */
+	void onTouchEvent(MotionEvent event)
+	{
+		LatencyTracker tracker = latency;
+		long stamp = tracker != null ? tracker.markTouch() : 0;
+		
+		if(event.getAction() == MotionEvent.ACTION_DOWN)
+		{
+			filter.reset();
+			isReleased = false;
+		}
+		
+		int history = event.getHistorySize();
+		for(int i = 0; i < history; i++)
+			filter.add(event.getHistoricalX(i), event.getHistoricalY(i), event.getHistoricalEventTime(i) * 1000000L);
+		filter.add(event.getX(), event.getY(), event.getEventTime() * 1000000L);
+		targetStamp = stamp;
+		target.set(CircleOffset.pack((int) filter.getX(), (int) filter.getY()));
+		
+		//Set after the last position so it is drawn before the circle starts back to the centre
+		if(event.getAction() == MotionEvent.ACTION_UP)
+			isReleased = true;
+	}
+	
+	/**
+	 * Take the newest position, leaving none.  Called on the drawing thread.
+	 * @return - The position in screen coordinates, packed as described in CircleOffset,
+	 * or CircleOffset.NONE if there has been no touch since the last take
+	 */
+	long take()
+	{
+		long taken = target.getAndSet(CircleOffset.NONE);
+		takenStamp = taken == CircleOffset.NONE ? 0 : targetStamp;
+		return taken;
+	}
+	
+	/**
+	 * @return - Stamp of the touch behind the position returned by the last
+	 * take(), 0 if it returned none or touches are not being timed
+	 */
+	long getTakenStamp()
+	{
+		return takenStamp;
+	}
+	
+	/**
+	 * @return - True if a position is waiting to be taken
+	 */
+	boolean hasTarget()
+	{
+		return target.get() != CircleOffset.NONE;
+	}
+	
+	/**
+	 * @return - True once the circle has been let go, and before the first touch
+	 */
+	boolean isReleased()
+	{
+		return isReleased;
+	}
+}
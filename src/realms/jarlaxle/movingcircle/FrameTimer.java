@@ -0,0 +1,80 @@
+package realms.jarlaxle.movingcircle;
+
+/** Keeps simple statistics about how long frames take to draw
+ * and how many frames were skipped because nothing changed.
+ * Written by the drawing thread, readable from any thread.
+ */
+public class FrameTimer {
+
+	/** Number of frames drawn */
+	private volatile long frames;
+	/** Number of frames skipped because nothing changed */
+	private volatile long skipped;
+	/** Total time spent drawing, in nanoseconds */
+	private volatile long totalNanos;
+	/** Longest frame, in nanoseconds */
+	private volatile long maxNanos;
+	
+	/**
+	 * Record a drawn frame.
+	 * @param nanos - How long the frame took to draw, not counting the wait
+	 * for the surface or for the buffers to be swapped
+	 */
+	public void recordFrame(long nanos)
+	{
+		frames++;
+		totalNanos += nanos;
+		if(nanos > maxNanos)
+			maxNanos = nanos;
+	}
+	
+	/**
+	 * Record a frame that was not drawn because nothing changed.
+	 */
+	public void recordSkipped()
+	{
+		skipped++;
+	}
+	
+	/**
+	 * Clear all statistics.
+	 */
+	public void reset()
+	{
+		frames = 0;
+		skipped = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+	}
+	
+	public long getFrameCount()
+	{
+		return frames;
+	}
+	
+	public long getSkippedCount()
+	{
+		return skipped;
+	}
+	
+	/**
+	 * @return - Average time to draw a frame in nanoseconds, 0 if nothing was drawn
+	 */
+	public long getAverageNanos()
+	{
+		long count = frames;
+		return count == 0 ? 0 : totalNanos / count;
+	}
+	
+	public long getMaxNanos()
+	{
+		return maxNanos;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "frames=" + getFrameCount() + " skipped=" + getSkippedCount() 
+				+ " avg=" + (getAverageNanos() / 1000) + "us max=" + (getMaxNanos() / 1000) + "us";
+	}
+}
@@ -1,11 +1,13 @@
 package realms.jarlaxle.movingcircle;
 
 import realms.entreri.bluetoothutility.R;
-import realms.jarlaxle.movingcircle.MovingCircleView.MovingCircleThread;
+import realms.jarlaxle.metrics.LatencyTracker;
+import android.app.ActivityManager;
 import android.app.Fragment;
+import android.content.Context;
+import android.content.pm.ConfigurationInfo;
 import android.os.Bundle;
 import android.util.Log;
-import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,11 +17,15 @@ public class MovingCircleFragment extends Fragment {
 	/** Used for debug messages */
 	public static final boolean d = true;
 	
-	/** A handle to the thread that runs the circle. */
-    private MovingCircleThread circleThread;
+	/** Draw the circle with OpenGL ES 2.0 when the device has it instead of with Canvas.
+	 * Off until the GL view has been tried on devices, turn it on to compare the renderers. */
+	public static final boolean USE_GL = false;
     
     /** A handle to the view where the circle is running. */
-    private MovingCircleView circleView;
+    private CircleSurface circleView;
+    
+    /** The same view when it is drawn with GL, it has to be paused and resumed */
+    private MovingCircleGLView glView;
     
 	/** Called when the activity is first created. */
     @Override
@@ -38,12 +44,38 @@ public class MovingCircleFragment extends Fragment {
 		//Inflate the view to return
 		View toReturn = inflater.inflate(R.layout.circle_fragment, container, false);	
 		
-		//Get the circle view and thread
-        circleView = (MovingCircleView) toReturn.findViewById(R.id.movingCircle);
-        //circleThread = circleView.getThread();
+		//Get the circle view
+        MovingCircleView canvasView = (MovingCircleView) toReturn.findViewById(R.id.movingCircle);
+        circleView = canvasView;
+        
+        //Put the GL view in its place if it can be used, the Canvas view is the fallback
+        if(USE_GL && supportsGles2())
+        {
+        	ViewGroup parent = (ViewGroup) toReturn;
+        	glView = new MovingCircleGLView(getActivity());
+        	glView.setId(R.id.movingCircle);
+        	glView.setFocusableInTouchMode(true);
+        	int index = parent.indexOfChild(canvasView);
+        	ViewGroup.LayoutParams params = canvasView.getLayoutParams();
+        	parent.removeView(canvasView);
+        	parent.addView(glView, index, params);
+        	circleView = glView;
+        }
+        if(d)
+			Log.d("MovingCircleFragment", "Drawing the circle with " + circleView.getRendererName());
         
 		return toReturn;
 	}
+    
+    /**
+     * @return - True if the device supports OpenGL ES 2.0
+     */
+    private boolean supportsGles2()
+    {
+    	ActivityManager manager = (ActivityManager) getActivity().getSystemService(Context.ACTIVITY_SERVICE);
+    	ConfigurationInfo info = manager.getDeviceConfigurationInfo();
+    	return info != null && info.reqGlEsVersion >= 0x20000;
+    }
  
     /**
      * Invoked when Activity loses user focus.
@@ -54,8 +86,8 @@ public class MovingCircleFragment extends Fragment {
     	if(d)
 			Log.d("MovingCircleFragment", "Entered onPause");
     	super.onPause();
-    	
-    	
+    	if(glView != null)
+    		glView.onPause();
     }
     
     /**
@@ -67,7 +99,8 @@ public class MovingCircleFragment extends Fragment {
     	if(d)
 			Log.d("MovingCircleFragment", "Entered onResume");
     	super.onResume();
-    	circleThread = circleView.getThread();    		
+    	if(glView != null)
+    		glView.onResume();
     }   
     
     /**
@@ -89,14 +122,28 @@ public class MovingCircleFragment extends Fragment {
 	 * Get circle offset.  Used to get the offset from center of the screen
 	 * Note: Towards the right of the screen is a positive x offset and towards 
 	 * the top is a positive y offset.
-	 * @return offset of drawn circle in format [x,y] from center of screen
+	 * @return offset of drawn circle from center of screen, packed as described 
+	 * in CircleOffset, or CircleOffset.NONE if the circle is not running
 	 */
-    public Pair<Integer, Integer> getCircleOffset()
+    public long getCircleOffset()
+    {
+    	return circleView.getCircleOffset();
+    }
+    
+    /**
+     * @return - Statistics on how long frames take to draw, null if nothing is being drawn
+     */
+    public FrameTimer getFrameTimer()
+    {
+    	return circleView.getFrameTimer();
+    }
+    
+    /**
+     * @return - Short name of the renderer drawing the circle, used in reports
+     */
+    public String getRendererName()
     {
-    	if(circleThread != null)
-    		return circleThread.getCircleOffset();
-    	else
-    		return null;
+    	return circleView.getRendererName();
     }
     
     /**
@@ -109,6 +156,15 @@ public class MovingCircleFragment extends Fragment {
 		circleView.registerListener(listener);
 	}
 	
+	/**
+	 * Set the tracker used to time touches on the circle.
+	 * @param tracker - The tracker, may be null
+	 */
+	public void setLatencyTracker(LatencyTracker tracker)
+	{
+		circleView.setLatencyTracker(tracker);
+	}
+	
 	/**
 	 * This function removes a listener.
 	 * @param listener - the object that no longer wants to recieve updates
@@ -0,0 +1,353 @@
+package realms.jarlaxle.movingcircle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import realms.jarlaxle.metrics.LatencyTracker;
+import realms.jarlaxle.movingcircle.MovingCircleView.MovingCircleThread;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.MotionEvent;
+
+/** Draws the moving circle with OpenGL ES 2.0 instead of Canvas.  It looks
+ * and behaves like MovingCircleView: touches go through the same filter,
+ * clamp and centering spring, and listeners are called the same way from
+ * the drawing thread.
+ * <p>
+ * The background, the boundary circle and the knob are all drawn by one
+ * fragment shader over a single quad, so moving the knob costs one uniform
+ * and one draw call.  Frames are only drawn when something changed, the
+ * view renders when dirty and asks for the next frame itself while the
+ * knob is on its way back to the centre.
+ * <p>
+ * The FrameTimer counts the time spent in onDrawFrame(), not the buffer
+ * swap that follows it, just as MovingCircleView leaves out locking and
+ * posting the canvas, so the two renderers' frame times can be compared.
+ */
+public class MovingCircleGLView extends GLSurfaceView implements CircleSurface {
+	
+	/** Places each fragment relative to the boundary circle, in units of its radius */
+	private static final String VERTEX_SHADER =
+			"attribute vec2 aPosition;\n" +
+			"uniform vec2 uScale;\n" +
+			"varying vec2 vPosition;\n" +
+			"void main() {\n" +
+			"	vPosition = aPosition * uScale;\n" +
+			"	gl_Position = vec4(aPosition, 0.0, 1.0);\n" +
+			"}\n";
+	
+	/** Knob over boundary over background, working in units of the boundary radius so mediump is enough */
+	private static final String FRAGMENT_SHADER =
+			"precision mediump float;\n" +
+			"uniform vec2 uKnob;\n" +
+			"uniform float uKnobRadius2;\n" +
+			"varying vec2 vPosition;\n" +
+			"void main() {\n" +
+			"	vec2 toKnob = vPosition - uKnob;\n" +
+			"	if(dot(toKnob, toKnob) <= uKnobRadius2)\n" +
+			"		gl_FragColor = vec4(1.0, 0.0, 0.0, 1.0);\n" +
+			"	else if(dot(vPosition, vPosition) <= 1.0)\n" +
+			"		gl_FragColor = vec4(0.0, 0.0, 1.0, 1.0);\n" +
+			"	else\n" +
+			"		gl_FragColor = vec4(0.0, 0.0, 0.0, 1.0);\n" +
+			"}\n";
+	
+	/** Corners of the screen in clip space, drawn as a triangle strip */
+	private static final float[] QUAD = { -1, -1, 1, -1, -1, 1, 1, 1 };
+	
+	/** Draws the circles, runs on the GL thread */
+	private class CircleRenderer implements GLSurfaceView.Renderer
+	{
+		/** The quad, in native order for GL */
+		private final FloatBuffer quad;
+		
+		/** Shader program and where its inputs are */
+		private int program;
+		private int positionHandle;
+		private int scaleHandle;
+		private int knobHandle;
+		private int knobRadiusHandle;
+		
+		/** Center of the surface, in screen coordinates */
+		private int cX;
+		private int cY;
+		
+		/** Radius of movement, and its inverse for the shader */
+		private int radius;
+		private float inverseRadius;
+		
+		/** Knob offset from the centre, positive to the right and towards the top */
+		private int knobX;
+		private int knobY;
+		
+		/** Knob offset the listeners were last told about */
+		private int drawnX;
+		private int drawnY;
+		
+		/** Pulls the knob back to the centre once it is let go */
+		private final CenteringSpring spring = new CenteringSpring();
+		
+		/** True while the spring holds the knob's position */
+		private boolean isCentering = false;
+		
+		CircleRenderer()
+		{
+			quad = ByteBuffer.allocateDirect(QUAD.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			quad.put(QUAD);
+			quad.position(0);
+		}
+		
+		public void onSurfaceCreated(GL10 unused, EGLConfig config)
+		{
+			//A new context, the old program is gone with the old one
+			program = createProgram();
+			if(program == 0)
+				return;
+			
+			positionHandle = GLES20.glGetAttribLocation(program, "aPosition");
+			scaleHandle = GLES20.glGetUniformLocation(program, "uScale");
+			knobHandle = GLES20.glGetUniformLocation(program, "uKnob");
+			knobRadiusHandle = GLES20.glGetUniformLocation(program, "uKnobRadius2");
+			
+			GLES20.glUseProgram(program);
+			GLES20.glVertexAttribPointer(positionHandle, 2, GLES20.GL_FLOAT, false, 0, quad);
+			GLES20.glEnableVertexAttribArray(positionHandle);
+		}
+		
+		public void onSurfaceChanged(GL10 unused, int width, int height)
+		{
+			GLES20.glViewport(0, 0, width, height);
+			
+			cX = width / 2;
+			cY = height / 2;
+			
+			//Same radius of motion as the Canvas view
+			radius = MovingCircleThread.MOVEMENT_RADIUS;
+			radius = (radius > (Math.min(height, width)/2)) ? Math.min(height, width) / 2: radius;
+			if(radius < 0)
+				radius = 0;
+			inverseRadius = radius > 0 ? 1f / radius : 0;
+			
+			//Start in the centre
+			knobX = knobY = 0;
+			drawnX = drawnY = 0;
+			spring.stop();
+			isCentering = false;
+			offset = CircleOffset.pack(0, 0);
+			
+			if(program != 0)
+			{
+				float knobRadius = MovingCircleThread.CIRCLE_WIDTH / 2 * inverseRadius;
+				GLES20.glUniform2f(scaleHandle, cX * inverseRadius, cY * inverseRadius);
+				GLES20.glUniform1f(knobRadiusHandle, knobRadius * knobRadius);
+			}
+		}
+		
+		public void onDrawFrame(GL10 unused)
+		{
+			long start = System.nanoTime();
+			
+			//Take the newest touch, once per frame however many samples arrived
+			long target = touch.take();
+			long touchNanos = touch.getTakenStamp();
+			if(target != CircleOffset.NONE)
+			{
+				long clamped = CircleMath.clamp(CircleOffset.x(target) - cX, CircleOffset.y(target) - cY, radius);
+				knobX = CircleOffset.x(clamped);
+				knobY = -CircleOffset.y(clamped);
+				isCentering = false;
+				LatencyTracker tracker = touch.getLatencyTracker();
+				if(tracker != null)
+					tracker.record(LatencyTracker.STAGE_CLAMP, touchNanos);
+			}
+			
+			//Change offset if necessary
+			if(touch.isReleased())
+			{
+				if(!isCentering)
+				{
+					spring.release(knobX, knobY, start);
+					isCentering = true;
+				}
+				long stepped = spring.step(start);
+				knobX = CircleOffset.x(stepped);
+				knobY = CircleOffset.y(stepped);
+			}
+			
+			if(knobX != drawnX || knobY != drawnY)
+			{
+				drawnX = knobX;
+				drawnY = knobY;
+				offset = CircleOffset.pack(knobX, knobY);
+				callListeners(knobX, knobY, touchNanos);
+			}
+			
+			if(program == 0 || radius == 0)
+			{
+				GLES20.glClearColor(0, 0, 0, 1);
+				GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+			}
+			else
+			{
+				GLES20.glUniform2f(knobHandle, knobX * inverseRadius, knobY * inverseRadius);
+				GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, QUAD.length / 2);
+			}
+			
+			//Keep drawing while the knob is moving on its own
+			if(spring.isMoving() || touch.hasTarget())
+				requestRender();
+			
+			frameTimer.recordFrame(System.nanoTime() - start);
+		}
+	}
+	
+	/** Filters the touches and hands the newest one to the GL thread */
+	private final CircleTouch touch = new CircleTouch();
+	
+	/** Offset of the knob as last drawn, packed as described in CircleOffset */
+	private volatile long offset = CircleOffset.NONE;
+	
+	/** Statistics on frame draw times */
+	private final FrameTimer frameTimer = new FrameTimer();
+	
+	/** Listeners, called from the GL thread */
+	private final CircleListeners listeners = new CircleListeners();
+	
+	public MovingCircleGLView(Context context)
+	{
+		this(context, null);
+	}
+	
+	public MovingCircleGLView(Context context, AttributeSet attrs)
+	{
+		super(context, attrs);
+		setEGLContextClientVersion(2);
+		setRenderer(new CircleRenderer());
+		setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+		setFocusable(true);
+	}
+	
+	/**
+	 * Pause the GL thread.  Must be called when the activity pauses.
+	 */
+	@Override
+	public void onPause()
+	{
+		super.onPause();
+		if(MovingCircleFragment.d)
+			Log.d("MovingCircleGLView", "Frame stats: " + frameTimer);
+	}
+	
+	/**
+	 * Compile and link the shaders.
+	 * @return - The program, 0 if it could not be built
+	 */
+	private static int createProgram()
+	{
+		int vertex = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+		int fragment = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+		if(vertex == 0 || fragment == 0)
+			return 0;
+		
+		int program = GLES20.glCreateProgram();
+		GLES20.glAttachShader(program, vertex);
+		GLES20.glAttachShader(program, fragment);
+		GLES20.glLinkProgram(program);
+		//Flagged now, freed along with the program
+		GLES20.glDeleteShader(vertex);
+		GLES20.glDeleteShader(fragment);
+		
+		int[] status = new int[1];
+		GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+		if(status[0] == 0)
+		{
+			Log.e("MovingCircleGLView", "Could not link the circle shaders: " + GLES20.glGetProgramInfoLog(program));
+			GLES20.glDeleteProgram(program);
+			return 0;
+		}
+		return program;
+	}
+	
+	/**
+	 * Compile one shader.
+	 * @return - The shader, 0 if it did not compile
+	 */
+	private static int loadShader(int type, String source)
+	{
+		int shader = GLES20.glCreateShader(type);
+		GLES20.glShaderSource(shader, source);
+		GLES20.glCompileShader(shader);
+		
+		int[] status = new int[1];
+		GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+		if(status[0] == 0)
+		{
+			Log.e("MovingCircleGLView", "Could not compile a circle shader: " + GLES20.glGetShaderInfoLog(shader));
+			GLES20.glDeleteShader(shader);
+			return 0;
+		}
+		return shader;
+	}
+	
+	public void registerListener(MovingCircleListener listener)
+	{
+		listeners.register(listener);
+	}
+	
+	public void unregisterListener(MovingCircleListener listener)
+	{
+		listeners.unregister(listener);
+	}
+	
+	public void setLatencyTracker(LatencyTracker tracker)
+	{
+		touch.setLatencyTracker(tracker);
+	}
+	
+	public long getCircleOffset()
+	{
+		return offset;
+	}
+	
+	public FrameTimer getFrameTimer()
+	{
+		return frameTimer;
+	}
+	
+	public String getRendererName()
+	{
+		return "gl";
+	}
+	
+	/**
+	 * Call all of the listeners with the new circle location.
+	 */
+	private void callListeners(int X, int Y, long touchNanos)
+	{
+		LatencyTracker tracker = touch.getLatencyTracker();
+		if(tracker != null)
+			tracker.record(LatencyTracker.STAGE_DISPATCH, touchNanos);
+		
+		listeners.call(X, Y, touchNanos);
+	}
+	
+	/**
+	 * The touch is filtered and the GL thread asked to draw it on its
+	 * next frame.
+	 */
+	@Override
+	public boolean onTouchEvent(MotionEvent event)
+	{
+		touch.onTouchEvent(event);
+		requestRender();
+		return true;
+	}
+}
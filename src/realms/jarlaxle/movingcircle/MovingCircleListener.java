@@ -2,7 +2,8 @@ package realms.jarlaxle.movingcircle;
 
 public interface MovingCircleListener {
 	
-	//This function gets called whenever the circle position changes
-	public void onCircleMoved(int X, int Y);
+	//This function gets called whenever the circle position changes, touchNanos is
+	//the LatencyTracker stamp of the touch that moved it or 0 if it moved on its own
+	public void onCircleMoved(int X, int Y, long touchNanos);
 
 }
@@ -1,19 +1,22 @@
 package realms.jarlaxle.movingcircle;
 
 
-import java.util.LinkedList;
+import realms.jarlaxle.metrics.LatencyTracker;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.OvalShape;
 import android.util.AttributeSet;
-import android.util.Pair;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.WindowManager;
 
-public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callback {
+public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callback, CircleSurface {
 	public class MovingCircleThread extends Thread
 	{
 		/*
@@ -28,6 +31,9 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		/** Default radius of movement for the moving circle, the radius of the large background circle. */
 		public static final int MOVEMENT_RADIUS = 126;
 		
+		/** Refresh rate used if the display does not report one */
+		public static final float DEFAULT_REFRESH_RATE = 60f;
+		
 		/*
 		 * State fields
 		 */
@@ -47,6 +53,13 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		/** The boundary circle to draw, indicates edge of range. */
 		private ShapeDrawable boundaryCircle;
 		
+		/** The background and boundary circle, drawn once for each surface size.
+		 * Null if it could not be made, then they are drawn every frame. */
+		private Bitmap background;
+		
+		/** Part of the surface being redrawn this frame */
+		private final Rect dirty = new Rect();
+		
 		/** Location of circle */
 		private int X;
 		private int Y;
@@ -54,8 +67,17 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		/** Radius of movement for the moving circle, the radius of the large background circle. */
 		private int radius;
 		
-		/** Boolean to decide to change the circle offset or not */
-		private boolean updateOffset;
+		/** Stamp of the touch drawn this frame, 0 when the circle moves on its own */
+		private long touchNanos = 0;
+		
+		/** Pulls the circle back to the centre once it is let go */
+		private final CenteringSpring spring = new CenteringSpring();
+		
+		/** True while the spring holds the circle's position, false once the circle is put somewhere else */
+		private volatile boolean isCentering = false;
+		
+		/** True when the canvas must be redrawn even if the circle has not moved */
+		private volatile boolean needsRedraw = true;
 		
 		/** Circle direction and velocity */
 		private int vX;
@@ -65,7 +87,13 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		private int state;
 		
 		/** Is thread runing */
-		private boolean isRunning = false;
+		private volatile boolean isRunning = false;
+		
+		/** Time between frames in nanoseconds, matched to the display */
+		private long framePeriod = (long) (1000000000L / DEFAULT_REFRESH_RATE);
+		
+		/** Statistics on frame draw times */
+		private final FrameTimer frameTimer = new FrameTimer();
 		
 		/** Hanlder to the surface holder */
 		private SurfaceHolder surfaceHolder;
@@ -77,9 +105,6 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		 */
 		public MovingCircleThread(SurfaceHolder surfaceHolder)
 		{
-			//Initially assume no touch events
-			updateOffset = true;
-			
 			//Set the handle to the surface holder
 			this.surfaceHolder = surfaceHolder;
 			
@@ -98,32 +123,159 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		@Override
 		public void run()
 		{
+			long nextFrame = System.nanoTime();
 			while(isRunning)
 			{						
+				//Take the newest touch, once per frame however many samples arrived
+				long target = touch.take();
+				touchNanos = touch.getTakenStamp();
+				if(target != CircleOffset.NONE)
+				{
+					setCircleLocation(CircleOffset.x(target), CircleOffset.y(target));
+					LatencyTracker tracker = touch.getLatencyTracker();
+					if(tracker != null)
+						tracker.record(LatencyTracker.STAGE_CLAMP, touchNanos);
+				}
+				
 				//Change offset if necessary
-				if(updateOffset)
-					decreaseOffset();
+				if(touch.isReleased())
+					recenter(System.nanoTime());
 				
-				//Update and draw the circle
-				Canvas c = null;
-				try
+				//Update and draw the circle, but only if something changed
+				if(needsRedraw || circleMoved())
 				{
-					c = surfaceHolder.lockCanvas(null);
+					//Only the drawing is timed, waiting on the surface is left out as the GL view leaves out the swap
+					long start = System.nanoTime();
 					synchronized (surfaceHolder) {
 						updateCircleLocation();
-						doDraw(c);
+					}
+					long drawTime = System.nanoTime() - start;
+					
+					//The surface may grow the rectangle, doDraw() covers whatever it returns
+					Canvas c = surfaceHolder.lockCanvas(dirty);
+					if(c == null)
+					{
+						//The surface is not ready or is going away, redraw all of it next frame
+						//rather than park on a screen that never showed this one
+						needsRedraw = true;
+						frameTimer.recordSkipped();
+					}
+					else
+					{
+						try
+						{
+							start = System.nanoTime();
+							synchronized (surfaceHolder) {
+								doDraw(c);
+							}
+							drawTime += System.nanoTime() - start;
+						}
+						finally
+						{
+							surfaceHolder.unlockCanvasAndPost(c);
+						}
+						frameTimer.recordFrame(drawTime);
 					}
 				}
-				catch(NullPointerException e)
-				{}
-				finally
+				else
+					frameTimer.recordSkipped();
+				
+				//Park when centred and untouched, otherwise wait for the next frame
+				if(isIdle())
+				{
+					waitForWake();
+					nextFrame = System.nanoTime();
+				}
+				else
+					nextFrame = waitForFrame(nextFrame);
+			}
+		}
+		
+		/**
+		 * Sleep until the next frame is due.
+		 * @param nextFrame - Time the frame that was just drawn was due
+		 * @return - Time the following frame is due
+		 */
+		private long waitForFrame(long nextFrame)
+		{
+			nextFrame += framePeriod;
+			long delay = nextFrame - System.nanoTime();
+			if(delay <= 0)
+			{
+				//Running late, do not try to catch up
+				return System.nanoTime();
+			}
+			
+			try
+			{
+				Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+			}
+			catch(InterruptedException e)
+			{}
+			return nextFrame;
+		}
+		
+		/**
+		 * The thread is idle when nobody is touching the circle, it is 
+		 * centred and it has already been drawn there.
+		 */
+		private boolean isIdle()
+		{
+			return isRunning && touch.isReleased() && !needsRedraw && X == cX && Y == cY && !circleMoved()
+					&& !touch.hasTarget();
+		}
+		
+		/**
+		 * Block until wake() is called or the thread is stopped.
+		 */
+		private synchronized void waitForWake()
+		{
+			while(isIdle())
+			{
+				try
 				{
-					if(c != null)
-						surfaceHolder.unlockCanvasAndPost(c);
+					wait();
 				}
+				catch(InterruptedException e)
+				{}
 			}
 		}
 		
+		/**
+		 * Wake the thread if it is idle.  Called when the circle is touched.
+		 */
+		public synchronized void wake()
+		{
+			notifyAll();
+		}
+		
+		/**
+		 * Has the circle moved since it was last drawn.
+		 */
+		private boolean circleMoved()
+		{
+			return circle.getBounds().left != X - CIRCLE_WIDTH/2 || circle.getBounds().top != Y - CIRCLE_WIDTH/2;
+		}
+		
+		/**
+		 * Match frame pacing to the display.
+		 * @param refreshRate - Refresh rate of the display in frames per second
+		 */
+		public void setRefreshRate(float refreshRate)
+		{
+			if(refreshRate <= 0)
+				refreshRate = DEFAULT_REFRESH_RATE;
+			framePeriod = (long) (1000000000L / refreshRate);
+		}
+		
+		/**
+		 * @return - Statistics on how long frames take to draw
+		 */
+		public FrameTimer getFrameTimer()
+		{
+			return frameTimer;
+		}
+		
 		/** Used to change surface dimensions. */
 		public void setSurfaceSize(int width, int height)
 		{
@@ -134,6 +286,7 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 				
 				cX = X = canvasWidth/2;
 				cY = Y = canvasHeight/2;
+				isCentering = false;
 				
 				//Set location of circle to be middle
 				int left = canvasWidth/2 - CIRCLE_WIDTH/2;
@@ -148,6 +301,48 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 
 				//Set the boundary circle based on radius 
 				boundaryCircle.setBounds(cX - radius, cY - radius, cX + radius, cY + radius);
+				
+				drawBackground();
+				needsRedraw = true;
+			}
+			wake();
+		}
+		
+		/**
+		 * Draw the background and boundary circle into the cached bitmap,
+		 * replacing the one for the old size.  Called with the surface holder locked.
+		 */
+		private void drawBackground()
+		{
+			releaseBackground();
+			if(canvasWidth <= 0 || canvasHeight <= 0)
+				return;
+			
+			try
+			{
+				background = Bitmap.createBitmap(canvasWidth, canvasHeight, Bitmap.Config.ARGB_8888);
+			}
+			catch(OutOfMemoryError e)
+			{
+				//Fall back to drawing them every frame
+				return;
+			}
+			Canvas canvas = new Canvas(background);
+			canvas.drawColor(0xff000000);
+			boundaryCircle.draw(canvas);
+		}
+		
+		/**
+		 * Free the cached background.  Called once the surface is gone.
+		 */
+		public void releaseBackground()
+		{
+			synchronized (surfaceHolder) {
+				if(background != null)
+				{
+					background.recycle();
+					background = null;
+				}
 			}
 		}
 		
@@ -160,18 +355,27 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		public void setRunning(boolean run)
 		{
 			isRunning = run;
+			wake();
 		}
 		
 		/**
-		 * Draws the background and circle.
+		 * Draws the background and circle inside the dirty rectangle.
 		 */
 		private void doDraw(Canvas canvas)
 		{
-			//Black out background
-			canvas.drawColor(0xff000000);
-			
-			//Draw boundary circle
-			boundaryCircle.draw(canvas);
+			if(background != null)
+			{
+				//Copy back the background the circle was covering
+				canvas.drawBitmap(background, dirty, dirty, null);
+			}
+			else
+			{
+				//Black out background
+				canvas.drawColor(0xff000000);
+				
+				//Draw boundary circle
+				boundaryCircle.draw(canvas);
+			}
 			
 			//Draw the circle
 			circle.draw(canvas);
@@ -209,15 +413,25 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		 */
 		private void updateCircleLocation()
 		{
+			//Redraw where the circle was as well as where it is going
+			dirty.set(circle.getBounds());
+			
 			//Set location of circle to be middle
 			int left = X - CIRCLE_WIDTH/2;
 			int top = Y - CIRCLE_WIDTH/2;
 			if(circle.getBounds().left != left || circle.getBounds().top != top)
 			{
-				Pair<Integer, Integer> offset =  getCircleOffset();
-				callListeners(offset.first, offset.second);
+				callListeners(X - cX, cY - Y, touchNanos);
 			}
 			circle.setBounds(left, top, left + CIRCLE_WIDTH, top + CIRCLE_WIDTH);
+			
+			if(needsRedraw)
+			{
+				dirty.set(0, 0, canvasWidth, canvasHeight);
+				needsRedraw = false;
+			}
+			else
+				dirty.union(circle.getBounds());
 		}
 		
 		/**
@@ -227,95 +441,48 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		 */
 		public void setCircleLocation(int x, int y)
 		{
-			double finalX = x - cX;
-			double finalY = y - cY;
-			if((finalX*finalX + finalY*finalY) > radius * radius)
-			{
-				double tempX = finalX;
-				double tempY = finalY;
-				
-				//Slope of the line
-				double m = tempY/tempX;
-				
-				//Compute the absolute value of x
-				double absX = Math.sqrt((radius * radius)/(m*m + 1));
-				finalX = (tempX < 0) ? absX * -1 : absX;
-				finalY = m * finalX;				
-				
-			}
+			long offset = CircleMath.clamp(x - cX, y - cY, radius);
 			synchronized (surfaceHolder) {
-				X = ((int) finalX + cX);
-				Y = ((int) finalY + cY);
+				X = CircleOffset.x(offset) + cX;
+				Y = CircleOffset.y(offset) + cY;
+				isCentering = false;
 			}
 		}
 		
 		/**
-		 * Decrease offset.
-		 * Moves the circle in towards the center.  Used 
-		 * to auto-center the circle.
+		 * Moves the circle in towards the center.  Used to auto-center
+		 * the circle.  The spring starts from wherever the circle was put
+		 * last, and how far it moves depends only on the time passed.
+		 * @param now - Current time, in nanoseconds
 		 */
-		private void decreaseOffset()
+		private void recenter(long now)
 		{
-			//Get the current x and y values
-			int curX = X - cX;
-			int curY = cY - Y;
-			
-			//Current radius
-			double curR = Math.sqrt(curX*curX + curY * curY);
-			
-			//The rate at which the cirle auto centers
-			int rate = 0;
-						
-			//When more than two thirds out, decrease radius by 3 each run through
-			if(curR > radius * 9/10)
-				rate = 7;
-			else if(curR > radius * 8/10)
-				rate = 6;
-			else if(curR > radius * 7/10)
-				rate = 5;
-			else if(curR > radius * 5/10)
-				rate = 4;
-			else if(curR > radius * 3/10)
-				rate = 3;
-			else if(curR > radius * 2/10) //rate of 2
-				rate = 2;
-			else if(curR > 0.000000000000001) //rate of 0
-				rate = 1;
-			else
-				rate = 0;
-			
-			//Slope of line
-			double m = ((double)curY)/((double)curX);
-			
-			//New radius
-			double newR = curR - rate;
-			
-			//X value for the circle
-			double finalX = Math.sqrt((newR * newR)/(m * m + 1));
-			finalX = (curX < 1) ? finalX * -1: finalX;
-			
-			//Y value for circle
-			double finalY = m * finalX;
+			if(!isCentering)
+			{
+				spring.release(X - cX, cY - Y, now);
+				isCentering = true;
+			}
+			long offset = spring.step(now);
 			
 			//Set values for the circle
-			X = (int) (Math.round(finalX) + cX);
-			Y = (int) (cY - Math.round(finalY));
+			X = CircleOffset.x(offset) + cX;
+			Y = cY - CircleOffset.y(offset);
 		}
 		
 		/**
 		 * Get circle offset.  Used to get the offset from center of the screen
 		 * Note: Towards the right of the screen is a positive x offset and towards 
 		 * the top is a positive y offset.
-		 * @return offset of drawn circle in format [x,y] from center of screen
+		 * @return offset of drawn circle from center of screen, packed as described in CircleOffset
 		 */
-		public Pair<Integer, Integer> getCircleOffset()
+		public long getCircleOffset()
 		{
 			int tempX = X;
 			int tempY = Y;
 			int tempcX = cX;
 			int tempcY = cY;
 			
-			return new Pair<Integer, Integer>(tempX-tempcX, tempcY - tempY);
+			return CircleOffset.pack(tempX-tempcX, tempcY - tempY);
 		}
 	}
 	
@@ -325,8 +492,11 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 	Context context;
 	
 
-	/** Listeners */
-	private LinkedList<MovingCircleListener> listeners;
+	/** Listeners, called from the render thread */
+	private final CircleListeners listeners = new CircleListeners();
+	
+	/** Filters the touches and hands the newest one to the thread */
+	private final CircleTouch touch = new CircleTouch();
 	
 	/** 
 	 * Return the circle thread 
@@ -344,9 +514,6 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		//register that we want to head changes to our surface
 		SurfaceHolder holder = getHolder();
 		holder.addCallback(this);
-				
-		//create the listeners list
-		listeners = new LinkedList<MovingCircleListener>();
 		
 		setFocusable(true);
 	}
@@ -368,6 +535,7 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 		// start the thread here so that we don't busy-wait in run()
         // waiting for the surface to be created
 		thread = new MovingCircleThread(holder);
+		thread.setRefreshRate(((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay().getRefreshRate());
 		thread.setRunning(true);
         if(!thread.isAlive())
         	thread.start();
@@ -398,7 +566,10 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 			catch(InterruptedException e)
 			{}
 		}
+		thread.releaseBackground();
 		
+		if(MovingCircleFragment.d)
+			Log.d("MovingCircleView", "Frame stats: " + thread.getFrameTimer());
 	}	
 	
 	/**
@@ -408,8 +579,7 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 	 */
 	public void registerListener(MovingCircleListener listener)
 	{
-		if(!listeners.contains(listener))
-			listeners.add(listener);
+		listeners.register(listener);
 	}
 	
 	/**
@@ -418,35 +588,57 @@ public class MovingCircleView extends SurfaceView implements SurfaceHolder.Callb
 	 */
 	public void unregisterListener(MovingCircleListener listener)
 	{
-		if(listeners.contains(listener))
-			listeners.remove(listener);
+		listeners.unregister(listener);
+	}
+	
+	/**
+	 * Set the tracker used to time touches.
+	 * @param tracker - The tracker, may be null
+	 */
+	public void setLatencyTracker(LatencyTracker tracker)
+	{
+		touch.setLatencyTracker(tracker);
+	}
+	
+	public long getCircleOffset()
+	{
+		MovingCircleThread current = thread;
+		return current == null ? CircleOffset.NONE : current.getCircleOffset();
+	}
+	
+	public FrameTimer getFrameTimer()
+	{
+		MovingCircleThread current = thread;
+		return current == null ? null : current.getFrameTimer();
+	}
+	
+	public String getRendererName()
+	{
+		return "canvas";
 	}
 	
 	/**
 	 * Call all of the listeners with the new circle location.
 	 */
-	private void callListeners(int X, int Y)
+	private void callListeners(int X, int Y, long touchNanos)
 	{
-		for(MovingCircleListener listener : listeners)
-		{
-			listener.onCircleMoved(X, Y);
-		}
+		LatencyTracker tracker = touch.getLatencyTracker();
+		if(tracker != null)
+			tracker.record(LatencyTracker.STAGE_DISPATCH, touchNanos);
+		
+		listeners.call(X, Y, touchNanos);
 	}
 	
 	/**
 	 * Whenever someone makes a touch to this view the onTouchEvent
-	 * is called.  It updates the location of the circle.
+	 * is called.  The touch is filtered and the thread woken to draw it
+	 * on its next frame.
 	 */
 	@Override
 	public boolean onTouchEvent(MotionEvent event)
 	{
-		if(event.getAction() == MotionEvent.ACTION_DOWN)
-			thread.updateOffset = false;
-		else if(event.getAction() == MotionEvent.ACTION_UP)
-			thread.updateOffset = true;
-		int x = (int) event.getX();
-		int y = (int) event.getY();
-		thread.setCircleLocation(x, y);
+		touch.onTouchEvent(event);
+		thread.wake();
 		return true;
 	}
 }
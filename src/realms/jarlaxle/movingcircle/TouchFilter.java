@@ -0,0 +1,152 @@
+package realms.jarlaxle.movingcircle;
+
+/** Smooths touch positions with a One Euro filter: a low-pass filter
+ * whose cutoff rises with the speed of the finger.  A finger held still
+ * gets a low cutoff, which removes jitter, and a fast drag gets a high one,
+ * so the circle does not lag behind it.
+ * <p>
+ * Each axis is filtered on its own.  Times are passed in so the filter
+ * does not depend on any clock.  Not thread safe, it is meant to be fed
+ * from the UI thread only.
+ */
+public class TouchFilter {
+	
+	/** Cutoff when the finger is still, in Hz, used if none is set */
+	public static final float DEFAULT_MIN_CUTOFF = 1.0f;
+	/** How much the cutoff rises with speed, in Hz per pixel per second, used if none is set */
+	public static final float DEFAULT_BETA = 0.01f;
+	/** Cutoff used to smooth the speed itself, in Hz */
+	public static final float DERIVATIVE_CUTOFF = 1.0f;
+	
+	/** Shortest time taken between samples, samples can share a timestamp */
+	private static final float MIN_INTERVAL = 0.001f;
+	private static final float TWO_PI = (float) (2 * Math.PI);
+	
+	/** Settings */
+	private float minCutoff;
+	private float beta;
+	
+	/** Has a sample been added since the last reset */
+	private boolean hasSample = false;
+	/** Time of the last sample, in nanoseconds */
+	private long lastNanos;
+	
+	/** Filtered position */
+	private float x;
+	private float y;
+	
+	/** Filtered speed, in pixels per second */
+	private float speedX;
+	private float speedY;
+	
+	/** Number of samples added */
+	private long samples = 0;
+	
+	/**
+	 * Constructor using the default cutoff and beta.
+	 */
+	public TouchFilter()
+	{
+		this(DEFAULT_MIN_CUTOFF, DEFAULT_BETA);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param minCutoff - Cutoff when the finger is still, in Hz
+	 * @param beta - How much the cutoff rises with speed, 0 makes it a plain low-pass filter
+	 */
+	public TouchFilter(float minCutoff, float beta)
+	{
+		if(minCutoff <= 0)
+			throw new IllegalArgumentException("The cutoff must be positive.");
+		if(beta < 0)
+			throw new IllegalArgumentException("The beta can not be negative.");
+		this.minCutoff = minCutoff;
+		this.beta = beta;
+	}
+	
+	/**
+	 * Add a sample.  The first sample after a reset is taken as it is.
+	 * @param sampleX - Horizontal position
+	 * @param sampleY - Vertical position
+	 * @param nanos - When the sample was taken, in nanoseconds
+	 */
+	public void add(float sampleX, float sampleY, long nanos)
+	{
+		samples++;
+		if(!hasSample)
+		{
+			hasSample = true;
+			lastNanos = nanos;
+			x = sampleX;
+			y = sampleY;
+			speedX = 0;
+			speedY = 0;
+			return;
+		}
+		
+		float interval = Math.max(MIN_INTERVAL, (nanos - lastNanos) / 1e9f);
+		lastNanos = nanos;
+		
+		//Smooth the speed, then let it open up the cutoff for the position
+		float speedAlpha = alpha(DERIVATIVE_CUTOFF, interval);
+		speedX += speedAlpha * ((sampleX - x) / interval - speedX);
+		speedY += speedAlpha * ((sampleY - y) / interval - speedY);
+		
+		x += alpha(minCutoff + beta * Math.abs(speedX), interval) * (sampleX - x);
+		y += alpha(minCutoff + beta * Math.abs(speedY), interval) * (sampleY - y);
+	}
+	
+	/**
+	 * Forget the position, the next sample is taken as it is.  Call when
+	 * a new touch starts.
+	 */
+	public void reset()
+	{
+		hasSample = false;
+	}
+	
+	/**
+	 * @return - True if a sample has been added since the last reset
+	 */
+	public boolean hasSample()
+	{
+		return hasSample;
+	}
+	
+	/**
+	 * @return - Filtered horizontal position
+	 */
+	public float getX()
+	{
+		return x;
+	}
+	
+	/**
+	 * @return - Filtered vertical position
+	 */
+	public float getY()
+	{
+		return y;
+	}
+	
+	/**
+	 * @return - Number of samples added
+	 */
+	public long getSampleCount()
+	{
+		return samples;
+	}
+	
+	/**
+	 * Smoothing factor of a first order low-pass filter.
+	 * @param cutoff - Cutoff frequency, in Hz
+	 * @param interval - Time since the last sample, in seconds
+	 * @return - Weight of the new sample, between 0 and 1
+	 */
+	private static float alpha(float cutoff, float interval)
+	{
+		float r = TWO_PI * cutoff * interval;
+		return r / (r + 1);
+	}
+}
@@ -0,0 +1,48 @@
+package realms.jarlaxle.protocol;
+
+/** CRC-8 used to check frames sent over the serial link.
+ * This is the CRC-8/ATM variant (polynomial 0x07, initial value 0),
+ * which is cheap enough to compute on the robot's micro-controller.
+ */
+public final class Crc8 {
+
+	/** Generator polynomial */
+	public static final int POLYNOMIAL = 0x07;
+	
+	/** Precomputed remainder for every byte value */
+	private static final byte[] TABLE = new byte[256];
+	
+	static
+	{
+		for(int i = 0; i < 256; i++)
+		{
+			int crc = i;
+			for(int bit = 0; bit < 8; bit++)
+			{
+				if((crc & 0x80) != 0)
+					crc = (crc << 1) ^ POLYNOMIAL;
+				else
+					crc <<= 1;
+			}
+			TABLE[i] = (byte) crc;
+		}
+	}
+	
+	private Crc8()
+	{}
+	
+	/**
+	 * Compute the CRC of a range of bytes.
+	 * @param data - Array holding the bytes
+	 * @param offset - Start of the bytes in data
+	 * @param length - Number of bytes to include
+	 * @return - The CRC in the low 8 bits
+	 */
+	public static int compute(byte[] data, int offset, int length)
+	{
+		int crc = 0;
+		for(int i = offset; i < offset + length; i++)
+			crc = TABLE[(crc ^ data[i]) & 0xFF] & 0xFF;
+		return crc;
+	}
+}
@@ -0,0 +1,113 @@
+package realms.jarlaxle.protocol;
+
+/** A single drive command for the robot.  On the wire a frame looks like:
+ * <pre>
+ * [SYNC][sequence][left][right][flags][crc8]
+ * </pre>
+ * The CRC covers every byte before it, including the sync byte.  The
+ * same object is used to encode on the phone and to decode on the robot,
+ * and it can be reused for every frame so nothing is allocated per update.
+ */
+public class DriveFrame {
+
+	/** First byte of every drive frame */
+	public static final byte SYNC = (byte) 0xA5;
+	/** Number of bytes in an encoded frame */
+	public static final int LENGTH = 6;
+	
+	/** Flag set when the frame repeats the last command only to feed the robot's watchdog */
+	public static final int FLAG_KEEPALIVE = 0x01;
+	/** Flag set when the frame is a ping.  The robot does not apply the motor
+	 * values and answers with a TelemetryFrame.TYPE_PONG with the same sequence. */
+	public static final int FLAG_PING = 0x02;
+	
+	//Byte positions in an encoded frame
+	private static final int POS_SYNC = 0;
+	private static final int POS_SEQUENCE = 1;
+	private static final int POS_LEFT = 2;
+	private static final int POS_RIGHT = 3;
+	private static final int POS_FLAGS = 4;
+	private static final int POS_CRC = 5;
+	
+	/** Sequence number, wraps at 256 */
+	private int sequence;
+	/** Left motor value, 0-255 */
+	private int left;
+	/** Right motor value, 0-255 */
+	private int right;
+	/** Flag bits, see the FLAG_ constants */
+	private int flags;
+	
+	/**
+	 * Set every field of the frame.
+	 * @param sequence - Sequence number, only the low 8 bits are sent
+	 * @param left - Left motor value, only the low 8 bits are sent
+	 * @param right - Right motor value, only the low 8 bits are sent
+	 * @param flags - Flag bits, only the low 8 bits are sent
+	 */
+	public void set(int sequence, int left, int right, int flags)
+	{
+		this.sequence = sequence & 0xFF;
+		this.left = left & 0xFF;
+		this.right = right & 0xFF;
+		this.flags = flags & 0xFF;
+	}
+	
+	/**
+	 * Write the frame into an array.
+	 * @param dest - Array to write into, needs LENGTH bytes after offset
+	 * @param offset - Where the frame starts in dest
+	 * @return - Number of bytes written, always LENGTH
+	 */
+	public int encode(byte[] dest, int offset)
+	{
+		dest[offset + POS_SYNC] = SYNC;
+		dest[offset + POS_SEQUENCE] = (byte) sequence;
+		dest[offset + POS_LEFT] = (byte) left;
+		dest[offset + POS_RIGHT] = (byte) right;
+		dest[offset + POS_FLAGS] = (byte) flags;
+		dest[offset + POS_CRC] = (byte) Crc8.compute(dest, offset, POS_CRC);
+		return LENGTH;
+	}
+	
+	/**
+	 * Read a frame out of an array.  The fields of this object are only
+	 * changed if the frame is valid, so a corrupt frame can simply be dropped.
+	 * @param src - Array holding the frame, needs LENGTH bytes after offset
+	 * @param offset - Where the frame starts in src
+	 * @return - True if the sync byte and CRC were correct
+	 */
+	public boolean decode(byte[] src, int offset)
+	{
+		if(src[offset + POS_SYNC] != SYNC)
+			return false;
+		if((src[offset + POS_CRC] & 0xFF) != Crc8.compute(src, offset, POS_CRC))
+			return false;
+		
+		sequence = src[offset + POS_SEQUENCE] & 0xFF;
+		left = src[offset + POS_LEFT] & 0xFF;
+		right = src[offset + POS_RIGHT] & 0xFF;
+		flags = src[offset + POS_FLAGS] & 0xFF;
+		return true;
+	}
+	
+	public int getSequence()
+	{
+		return sequence;
+	}
+	
+	public int getLeft()
+	{
+		return left;
+	}
+	
+	public int getRight()
+	{
+		return right;
+	}
+	
+	public int getFlags()
+	{
+		return flags;
+	}
+}
@@ -0,0 +1,253 @@
+package realms.jarlaxle.protocol;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import realms.jarlaxle.transport.Link;
+
+/** Turns the bytes read from the robot into frames.  Bytes are fed in
+ * whatever chunks the transport returns them and are kept in a ring
+ * until a whole frame has arrived.  Bytes that do not start a frame and
+ * frames with a bad CRC are skipped, and the parser looks for the next
+ * sync byte.  Nothing is allocated per byte or per frame.
+ * <p>
+ * feed() must only be called from one thread, normally the link's reader.
+ */
+public class FrameParser implements Link.Receiver {
+
+	/** Default number of bytes that can be waiting, a power of two */
+	public static final int DEFAULT_CAPACITY = 256;
+	
+	/** Bytes received but not yet parsed */
+	private final byte[] mRing;
+	/** Used to wrap a position into the ring */
+	private final int mMask;
+	/** Position of the oldest unparsed byte */
+	private int mHead = 0;
+	/** Number of unparsed bytes */
+	private int mCount = 0;
+	
+	/** Holds one frame taken out of the ring */
+	private final byte[] mScratch = new byte[TelemetryFrame.LENGTH];
+	/** Frame reused for every telemetry report */
+	private final TelemetryFrame mTelemetry = new TelemetryFrame();
+	
+	/** Told about every valid telemetry frame */
+	private final CopyOnWriteArrayList<TelemetryListener> mListeners = new CopyOnWriteArrayList<TelemetryListener>();
+	/** Told about pongs, which are not passed to the telemetry listeners, may be null */
+	private volatile PongListener mPongListener = null;
+	
+	//Counters
+	private volatile long mFrames = 0;
+	private volatile long mCorrupt = 0;
+	private volatile long mSkipped = 0;
+	private volatile long mPongs = 0;
+	
+	/**
+	 * Constructor with the default capacity.
+	 */
+	public FrameParser()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param capacity - Number of bytes that can be waiting, rounded up to a power of two
+	 */
+	public FrameParser(int capacity)
+	{
+		if(capacity < TelemetryFrame.LENGTH)
+			throw new IllegalArgumentException("The capacity must hold at least one frame.");
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity)
+			size <<= 1;
+		mRing = new byte[size];
+		mMask = size - 1;
+	}
+	
+	/**
+	 * Called by the link with bytes read from the transport.
+	 */
+	public void onReceive(byte[] buffer, int offset, int length)
+	{
+		feed(buffer, offset, length);
+	}
+	
+	/**
+	 * Add bytes and publish every complete frame they finish.
+	 * @param buffer - Array holding the bytes
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes
+	 */
+	public void feed(byte[] buffer, int offset, int length)
+	{
+		while(length > 0)
+		{
+			//Copy as much as fits, then parse to make room
+			int space = mRing.length - mCount;
+			if(space == 0)
+			{
+				//The ring is full of junk that never formed a frame, drop the oldest byte
+				skip(1);
+				mSkipped++;
+				continue;
+			}
+			int chunk = Math.min(length, space);
+			for(int i = 0; i < chunk; i++)
+				mRing[(mHead + mCount + i) & mMask] = buffer[offset + i];
+			mCount += chunk;
+			offset += chunk;
+			length -= chunk;
+			
+			parse();
+		}
+	}
+	
+	/**
+	 * Throw away any bytes that have not formed a frame yet.
+	 */
+	public void reset()
+	{
+		mHead = 0;
+		mCount = 0;
+	}
+	
+	/**
+	 * Parse every complete frame in the ring.
+	 */
+	private void parse()
+	{
+		while(mCount > 0)
+		{
+			byte sync = mRing[mHead];
+			if(sync != TelemetryFrame.SYNC)
+			{
+				//Not the start of a frame
+				skip(1);
+				mSkipped++;
+				continue;
+			}
+			
+			if(mCount < TelemetryFrame.LENGTH)
+				return;
+			
+			for(int i = 0; i < TelemetryFrame.LENGTH; i++)
+				mScratch[i] = mRing[(mHead + i) & mMask];
+			
+			if(mTelemetry.decode(mScratch, 0))
+			{
+				skip(TelemetryFrame.LENGTH);
+				mFrames++;
+				if(mTelemetry.getType() == TelemetryFrame.TYPE_PONG)
+					pong();
+				else
+					publish();
+			}
+			else
+			{
+				//Bad CRC, the sync byte was probably data, look for the next one
+				skip(1);
+				mCorrupt++;
+			}
+		}
+	}
+	
+	/**
+	 * Drop bytes from the front of the ring.
+	 */
+	private void skip(int count)
+	{
+		mHead = (mHead + count) & mMask;
+		mCount -= count;
+	}
+	
+	/**
+	 * Tell every listener about the decoded telemetry frame.
+	 */
+	private void publish()
+	{
+		//Index loop so that no iterator is allocated
+		for(int i = 0; i < mListeners.size(); i++)
+		{
+			TelemetryListener listener;
+			try
+			{
+				listener = mListeners.get(i);
+			}
+			catch(IndexOutOfBoundsException e)
+			{
+				//A listener was removed while publishing
+				break;
+			}
+			listener.onTelemetry(mTelemetry);
+		}
+	}
+	
+	/**
+	 * Tell the pong listener about the decoded pong.
+	 */
+	private void pong()
+	{
+		mPongs++;
+		PongListener listener = mPongListener;
+		if(listener != null)
+			listener.onPong(mTelemetry.getSequence());
+	}
+	
+	/**
+	 * Set the listener told about pongs.  Safe to call from any thread.
+	 * @param listener - The listener, may be null
+	 */
+	public void setPongListener(PongListener listener)
+	{
+		mPongListener = listener;
+	}
+	
+	/**
+	 * Add a listener for telemetry frames.  Safe to call from any thread.
+	 */
+	public void registerListener(TelemetryListener listener)
+	{
+		mListeners.addIfAbsent(listener);
+	}
+	
+	/**
+	 * Remove a listener.  Safe to call from any thread.
+	 */
+	public void unregisterListener(TelemetryListener listener)
+	{
+		mListeners.remove(listener);
+	}
+	
+	/**
+	 * @return - Number of valid frames parsed
+	 */
+	public long getFrameCount()
+	{
+		return mFrames;
+	}
+	
+	/**
+	 * @return - Number of valid frames that were pongs
+	 */
+	public long getPongCount()
+	{
+		return mPongs;
+	}
+	
+	/**
+	 * @return - Number of frames dropped because of a bad CRC
+	 */
+	public long getCorruptCount()
+	{
+		return mCorrupt;
+	}
+	
+	/**
+	 * @return - Number of bytes skipped while looking for a frame
+	 */
+	public long getSkippedCount()
+	{
+		return mSkipped;
+	}
+}
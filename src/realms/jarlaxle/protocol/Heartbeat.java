@@ -0,0 +1,288 @@
+package realms.jarlaxle.protocol;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import realms.jarlaxle.metrics.LatencyHistogram;
+import realms.jarlaxle.transport.IoLoop;
+import realms.jarlaxle.transport.Link;
+
+/** Pings the robot over a link at a fixed interval and
+ * times the pongs, which the link's FrameParser passes to onPong().  The
+ * round trip time is smoothed the way TCP does it, giving a rolling
+ * estimate and its mean deviation as the jitter.  If a number of pings
+ * in a row go unanswered the link is declared dead, which is much faster
+ * than waiting for a read to fail.  The pings are a fixed rate task on
+ * the link's IoLoop, so the heartbeat needs no thread of its own, and
+ * they are written straight from the loop rather than through the link's
+ * queue, which only the thread sending drive commands fills.
+ */
+public class Heartbeat implements PongListener, Runnable {
+	
+	/** Told when the link stops answering */
+	public interface Callback
+	{
+		/**
+		 * Called once, on the loop, when too many pings in a
+		 * row went unanswered.  Not called when the heartbeat is cancelled.
+		 * @param heartbeat - The heartbeat that gave up
+		 */
+		public void onLinkDead(Heartbeat heartbeat);
+	}
+	
+	/** Milliseconds between pings used if none is set */
+	public static final long DEFAULT_INTERVAL_MILLIS = 250;
+	/** Unanswered pings in a row before the link is dead, used if none is set */
+	public static final int DEFAULT_MAX_MISSES = 4;
+	
+	/** Number of sequence numbers, pings wrap after this many */
+	private static final int SEQUENCES = 256;
+	
+	private final Link mLink;
+	private final IoLoop mLoop;
+	private final long mInterval;
+	private final int mMaxMisses;
+	private final Callback mCallback;
+	
+	/** Frame and buffer reused for every ping */
+	private final DriveFrame mFrame = new DriveFrame();
+	private final byte[] mBuffer = new byte[DriveFrame.LENGTH];
+	/** Sequence of the next ping */
+	private int mSequence = 0;
+	/** When each outstanding ping was sent, by sequence, 0 once answered */
+	private final AtomicLongArray mSentNanos = new AtomicLongArray(SEQUENCES);
+	/** Pings sent since the last pong */
+	private final AtomicInteger mUnanswered = new AtomicInteger();
+	
+	/** Every round trip time, for percentiles */
+	private final LatencyHistogram mRttHistogram = new LatencyHistogram();
+	/** Smoothed round trip time and its mean deviation, in nanoseconds, written by the reader thread */
+	private volatile long mSmoothedRtt = 0;
+	private volatile long mRttDeviation = 0;
+	/** Newest round trip time, in nanoseconds */
+	private volatile long mLastRtt = 0;
+	
+	//Counters
+	private volatile long mSent = 0;
+	private volatile long mAnswered = 0;
+	
+	private volatile boolean isRunning = true;
+	/** The repeating ping task, null until started */
+	private volatile ScheduledFuture<?> mTask = null;
+	
+	/**
+	 * Constructor with the default interval and misses.
+	 * @param link - The link to ping
+	 * @param loop - The loop the pings are sent from, must be the link's loop
+	 * @param callback - Told when the link stops answering
+	 */
+	public Heartbeat(Link link, IoLoop loop, Callback callback)
+	{
+		this(link, loop, DEFAULT_INTERVAL_MILLIS, DEFAULT_MAX_MISSES, callback);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param link - The link to ping
+	 * @param loop - The loop the pings are sent from, must be the link's loop
+	 * @param intervalMillis - Milliseconds between pings
+	 * @param maxMisses - Unanswered pings in a row before the link is dead
+	 * @param callback - Told when the link stops answering
+	 */
+	public Heartbeat(Link link, IoLoop loop, long intervalMillis, int maxMisses, Callback callback)
+	{
+		if(link == null)
+			throw new IllegalArgumentException("The link can not be null.");
+		if(loop == null)
+			throw new IllegalArgumentException("The loop can not be null.");
+		if(loop != link.getLoop())
+			throw new IllegalArgumentException("The loop must be the link's loop.");
+		if(intervalMillis <= 0)
+			throw new IllegalArgumentException("The interval must be positive.");
+		if(maxMisses < 1 || maxMisses >= SEQUENCES)
+			throw new IllegalArgumentException("The misses must be between 1 and " + (SEQUENCES - 1) + ".");
+		if(callback == null)
+			throw new IllegalArgumentException("The callback can not be null.");
+		
+		mLink = link;
+		mLoop = loop;
+		mInterval = intervalMillis;
+		mMaxMisses = maxMisses;
+		mCallback = callback;
+	}
+	
+	/**
+	 * Send the first ping now and one every interval after it, until the
+	 * link is dead or the heartbeat is cancelled.
+	 */
+	public void start()
+	{
+		mTask = mLoop.postAtFixedRate(this, mInterval);
+		//Cancelled before the task existed
+		if(!isRunning)
+			cancelTask();
+	}
+	
+	/**
+	 * One tick, run on the loop.  Gives up if too many pings went
+	 * unanswered, otherwise sends the next one.
+	 */
+	public void run()
+	{
+		if(!isRunning)
+			return;
+		
+		if(mUnanswered.get() >= mMaxMisses)
+		{
+			isRunning = false;
+			cancelTask();
+			mCallback.onLinkDead(this);
+			return;
+		}
+		
+		ping();
+	}
+	
+	/**
+	 * Send one ping.
+	 */
+	private void ping()
+	{
+		int sequence = mSequence;
+		mSequence = (mSequence + 1) & (SEQUENCES - 1);
+		
+		mFrame.set(sequence, 0, 0, DriveFrame.FLAG_PING);
+		mFrame.encode(mBuffer, 0);
+		mSentNanos.set(sequence, System.nanoTime());
+		mUnanswered.incrementAndGet();
+		mSent++;
+		mLink.writeOnLoop(mBuffer, 0, DriveFrame.LENGTH);
+	}
+	
+	/**
+	 * Called by the parser on the reader thread when a pong arrives.
+	 */
+	public void onPong(int sequence)
+	{
+		long sent = mSentNanos.getAndSet(sequence & (SEQUENCES - 1), 0);
+		//Answered already, or from before this heartbeat started
+		if(sent == 0)
+			return;
+		
+		long rtt = System.nanoTime() - sent;
+		mUnanswered.set(0);
+		mAnswered++;
+		mLastRtt = rtt;
+		mRttHistogram.record(rtt);
+		
+		//Smoothing from RFC 6298, gains of 1/8 and 1/4
+		long smoothed = mSmoothedRtt;
+		if(smoothed == 0)
+		{
+			mSmoothedRtt = rtt;
+			mRttDeviation = rtt / 2;
+		}
+		else
+		{
+			mRttDeviation += (Math.abs(smoothed - rtt) - mRttDeviation) / 4;
+			mSmoothedRtt = smoothed + (rtt - smoothed) / 8;
+		}
+	}
+	
+	/**
+	 * Stop pinging.  The callback is not called.
+	 */
+	public void cancel()
+	{
+		isRunning = false;
+		cancelTask();
+	}
+	
+	/**
+	 * Stop the repeating task.
+	 */
+	private void cancelTask()
+	{
+		ScheduledFuture<?> task = mTask;
+		if(task != null)
+			task.cancel(false);
+	}
+	
+	/**
+	 * @return - The link being pinged
+	 */
+	public Link getLink()
+	{
+		return mLink;
+	}
+	
+	/**
+	 * @return - Smoothed round trip time in nanoseconds, 0 before the first pong
+	 */
+	public long getRttNanos()
+	{
+		return mSmoothedRtt;
+	}
+	
+	/**
+	 * @return - Mean deviation of the round trip time in nanoseconds, the jitter
+	 */
+	public long getJitterNanos()
+	{
+		return mRttDeviation;
+	}
+	
+	/**
+	 * @return - The newest round trip time in nanoseconds
+	 */
+	public long getLastRttNanos()
+	{
+		return mLastRtt;
+	}
+	
+	/**
+	 * @return - Every round trip time, for percentiles
+	 */
+	public LatencyHistogram getRttHistogram()
+	{
+		return mRttHistogram;
+	}
+	
+	/**
+	 * @return - Pings sent since the last pong
+	 */
+	public int getUnansweredCount()
+	{
+		return mUnanswered.get();
+	}
+	
+	/**
+	 * @return - Number of pings sent
+	 */
+	public long getSentCount()
+	{
+		return mSent;
+	}
+	
+	/**
+	 * @return - Number of pings answered
+	 */
+	public long getAnsweredCount()
+	{
+		return mAnswered;
+	}
+	
+	/**
+	 * @return - Fraction of pings that were not answered, 0 before the first ping
+	 */
+	public double getLossRatio()
+	{
+		long sent = mSent;
+		if(sent == 0)
+			return 0;
+		//Do not count pings that may still be answered
+		long settled = Math.max(1, sent - mUnanswered.get());
+		return Math.max(0, 1 - (double) mAnswered / settled);
+	}
+}
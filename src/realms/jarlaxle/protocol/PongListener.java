@@ -0,0 +1,9 @@
+package realms.jarlaxle.protocol;
+
+public interface PongListener {
+	
+	//This function gets called on the reader thread for every pong the robot sends
+	//back.  The sequence is the one the ping was sent with.
+	public void onPong(int sequence);
+
+}
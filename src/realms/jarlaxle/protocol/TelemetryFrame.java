@@ -0,0 +1,117 @@
+package realms.jarlaxle.protocol;
+
+/** A telemetry report sent by the robot.  On the wire a frame looks like:
+ * <pre>
+ * [SYNC][type][sequence][first hi][first lo][second hi][second lo][crc8]
+ * </pre>
+ * Each report carries two signed 16 bit values whose meaning depends on
+ * the type.  The CRC covers every byte before it, including the sync byte.
+ * Like DriveFrame the same object encodes and decodes and can be reused.
+ */
+public class TelemetryFrame {
+
+	/** First byte of every telemetry frame */
+	public static final byte SYNC = (byte) 0x5A;
+	/** Number of bytes in an encoded frame */
+	public static final int LENGTH = 8;
+	
+	//Report types
+	/** Wheel encoder counts, first is left and second is right */
+	public static final int TYPE_ENCODERS = 1;
+	/** Battery, first is millivolts and second is percent charged */
+	public static final int TYPE_BATTERY = 2;
+	/** Answer to a ping, the sequence is the ping's and the values are unused */
+	public static final int TYPE_PONG = 3;
+	
+	//Byte positions in an encoded frame
+	private static final int POS_SYNC = 0;
+	private static final int POS_TYPE = 1;
+	private static final int POS_SEQUENCE = 2;
+	private static final int POS_FIRST = 3;
+	private static final int POS_SECOND = 5;
+	private static final int POS_CRC = 7;
+	
+	/** Type of report, 0-255 */
+	private int type;
+	/** Sequence number, wraps at 256 */
+	private int sequence;
+	/** First value, -32768 to 32767 */
+	private int first;
+	/** Second value, -32768 to 32767 */
+	private int second;
+	
+	/**
+	 * Set every field of the frame.
+	 * @param type - Type of report, only the low 8 bits are sent
+	 * @param sequence - Sequence number, only the low 8 bits are sent
+	 * @param first - First value, only the low 16 bits are sent
+	 * @param second - Second value, only the low 16 bits are sent
+	 */
+	public void set(int type, int sequence, int first, int second)
+	{
+		this.type = type & 0xFF;
+		this.sequence = sequence & 0xFF;
+		this.first = (short) first;
+		this.second = (short) second;
+	}
+	
+	/**
+	 * Write the frame into an array.
+	 * @param dest - Array to write into, needs LENGTH bytes after offset
+	 * @param offset - Where the frame starts in dest
+	 * @return - Number of bytes written, always LENGTH
+	 */
+	public int encode(byte[] dest, int offset)
+	{
+		dest[offset + POS_SYNC] = SYNC;
+		dest[offset + POS_TYPE] = (byte) type;
+		dest[offset + POS_SEQUENCE] = (byte) sequence;
+		dest[offset + POS_FIRST] = (byte) (first >> 8);
+		dest[offset + POS_FIRST + 1] = (byte) first;
+		dest[offset + POS_SECOND] = (byte) (second >> 8);
+		dest[offset + POS_SECOND + 1] = (byte) second;
+		dest[offset + POS_CRC] = (byte) Crc8.compute(dest, offset, POS_CRC);
+		return LENGTH;
+	}
+	
+	/**
+	 * Read a frame out of an array.  The fields of this object are only
+	 * changed if the frame is valid.
+	 * @param src - Array holding the frame, needs LENGTH bytes after offset
+	 * @param offset - Where the frame starts in src
+	 * @return - True if the sync byte and CRC were correct
+	 */
+	public boolean decode(byte[] src, int offset)
+	{
+		if(src[offset + POS_SYNC] != SYNC)
+			return false;
+		if((src[offset + POS_CRC] & 0xFF) != Crc8.compute(src, offset, POS_CRC))
+			return false;
+		
+		type = src[offset + POS_TYPE] & 0xFF;
+		sequence = src[offset + POS_SEQUENCE] & 0xFF;
+		first = (short) (((src[offset + POS_FIRST] & 0xFF) << 8) | (src[offset + POS_FIRST + 1] & 0xFF));
+		second = (short) (((src[offset + POS_SECOND] & 0xFF) << 8) | (src[offset + POS_SECOND + 1] & 0xFF));
+		return true;
+	}
+	
+	public int getType()
+	{
+		return type;
+	}
+	
+	public int getSequence()
+	{
+		return sequence;
+	}
+	
+	public int getFirst()
+	{
+		return first;
+	}
+	
+	public int getSecond()
+	{
+		return second;
+	}
+}
@@ -0,0 +1,9 @@
+package realms.jarlaxle.protocol;
+
+public interface TelemetryListener {
+	
+	//This function gets called on the reader thread for every valid telemetry frame.
+	//The frame is reused, so copy out anything that is needed later.
+	public void onTelemetry(TelemetryFrame frame);
+
+}
@@ -0,0 +1,191 @@
+package realms.jarlaxle.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** Reads the records out of a FlightRecorder file, oldest first.  Writes
+ * that were split across slots are put back together, and any the ring
+ * has partly overwritten are dropped.  This is meant for tools run after
+ * the fact, so unlike the recorder it allocates freely.
+ */
+public class FlightLog {
+	
+	/** One write or read, put back together from its slots */
+	public static class Record
+	{
+		/** Order the record was written in, the sequence of its first slot */
+		public final long sequence;
+		/** Wall clock time of the write or read, in nanoseconds */
+		public final long timeNanos;
+		/** FlightRecorder.DIRECTION_OUT or FlightRecorder.DIRECTION_IN */
+		public final int direction;
+		/** The bytes */
+		public final byte[] data;
+		
+		public Record(long sequence, long timeNanos, int direction, byte[] data)
+		{
+			this.sequence = sequence;
+			this.timeNanos = timeNanos;
+			this.direction = direction;
+			this.data = data;
+		}
+	}
+	
+	/** One slot from the ring, before split writes are joined */
+	private static class Slot
+	{
+		final long sequence;
+		final long timeNanos;
+		/** The direction byte, flags included */
+		final int direction;
+		final byte[] data;
+		
+		Slot(long sequence, long timeNanos, int direction, byte[] data)
+		{
+			this.sequence = sequence;
+			this.timeNanos = timeNanos;
+			this.direction = direction;
+			this.data = data;
+		}
+	}
+	
+	/** Every complete record, oldest first */
+	private final List<Record> mRecords;
+	
+	/**
+	 * Read a recorder file.
+	 * @param file - The ring file
+	 * @throws IOException - If the file can not be read or is not a recorder file
+	 */
+	public FlightLog(File file) throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{
+			if(!FlightRecorder.isValidHeader(in, 0))
+				throw new IOException(file + " is not a flight recorder file.");
+			
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			int slots = buffer.getInt(FlightRecorder.POS_SLOT_COUNT);
+			if(FlightRecorder.HEADER_SIZE + (long) slots * FlightRecorder.SLOT_SIZE > in.length())
+				throw new IOException(file + " is shorter than its header says.");
+			
+			List<Slot> read = new ArrayList<Slot>(slots);
+			for(int i = 0; i < slots; i++)
+			{
+				int slot = FlightRecorder.HEADER_SIZE + i * FlightRecorder.SLOT_SIZE;
+				long sequence = buffer.getLong(slot + FlightRecorder.SLOT_SEQUENCE);
+				int length = buffer.get(slot + FlightRecorder.SLOT_LENGTH) & 0xFF;
+				
+				//Empty, cut short by a crash, or not something the recorder wrote
+				if(sequence <= 0 || length > FlightRecorder.SLOT_PAYLOAD_SIZE)
+					continue;
+				
+				byte[] data = new byte[length];
+				for(int j = 0; j < length; j++)
+					data[j] = buffer.get(slot + FlightRecorder.SLOT_PAYLOAD + j);
+				read.add(new Slot(sequence,
+						buffer.getLong(slot + FlightRecorder.SLOT_TIME),
+						buffer.get(slot + FlightRecorder.SLOT_DIRECTION) & 0xFF,
+						data));
+			}
+			
+			Collections.sort(read, new Comparator<Slot>()
+			{
+				public int compare(Slot a, Slot b)
+				{
+					return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+				}
+			});
+			mRecords = join(read);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	/**
+	 * Put writes that were split across slots back together.  A write is
+	 * kept only if its first slot, every slot after it and its last slot
+	 * are all there, in order.
+	 * @param slots - Every slot read, oldest first
+	 * @return - The complete records, oldest first
+	 */
+	private static List<Record> join(List<Slot> slots)
+	{
+		List<Record> records = new ArrayList<Record>(slots.size());
+		int i = 0;
+		while(i < slots.size())
+		{
+			Slot first = slots.get(i++);
+			//The start of this write was overwritten
+			if((first.direction & FlightRecorder.FLAG_CONTINUED) != 0)
+				continue;
+			
+			byte[] data = first.data;
+			Slot last = first;
+			boolean isComplete = true;
+			while((last.direction & FlightRecorder.FLAG_MORE) != 0)
+			{
+				Slot next = i < slots.size() ? slots.get(i) : null;
+				if(next == null || next.sequence != last.sequence + 1
+						|| (next.direction & FlightRecorder.FLAG_CONTINUED) == 0)
+				{
+					//The rest of this write was cut short, leave the next slot to start its own
+					isComplete = false;
+					break;
+				}
+				
+				byte[] joined = new byte[data.length + next.data.length];
+				System.arraycopy(data, 0, joined, 0, data.length);
+				System.arraycopy(next.data, 0, joined, data.length, next.data.length);
+				data = joined;
+				last = next;
+				i++;
+			}
+			
+			if(isComplete)
+				records.add(new Record(first.sequence, first.timeNanos,
+						first.direction & FlightRecorder.DIRECTION_MASK, data));
+		}
+		return records;
+	}
+	
+	/**
+	 * @return - Every complete record, oldest first
+	 */
+	public List<Record> getRecords()
+	{
+		return Collections.unmodifiableList(mRecords);
+	}
+	
+	/**
+	 * @param direction - FlightRecorder.DIRECTION_OUT or FlightRecorder.DIRECTION_IN
+	 * @return - The records in that direction, oldest first
+	 */
+	public List<Record> getRecords(int direction)
+	{
+		List<Record> records = new ArrayList<Record>();
+		for(Record record : mRecords)
+			if(record.direction == direction)
+				records.add(record);
+		return records;
+	}
+	
+	/**
+	 * @return - Number of complete records
+	 */
+	public int size()
+	{
+		return mRecords.size();
+	}
+}
@@ -0,0 +1,246 @@
+package realms.jarlaxle.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Always-on record of the bytes sent to and read from the robot.  The
+ * file is a fixed-size ring of slots mapped into memory, so recording is
+ * a handful of stores into the page cache: nothing is allocated and
+ * nothing is synced.  The operating system writes the pages out, so the
+ * record survives the app being killed.  Once the ring is full the oldest
+ * records are overwritten.
+ * <p>
+ * The file starts with a header:
+ * <pre>
+ * [magic int][version int][slot size int][slot count int][reserved 16 bytes]
+ * </pre>
+ * and every slot after it looks like:
+ * <pre>
+ * [sequence long][time nanos long][direction byte][length byte][payload 14 bytes]
+ * </pre>
+ * The sequence is written last and is 0 while a slot is being written,
+ * so a record cut short by a crash is skipped by FlightLog.  Writes longer
+ * than a slot's payload are split across slots with consecutive sequences,
+ * all claimed at once so other threads' records can not land between
+ * them.  The direction byte of every slot but the last has FLAG_MORE set
+ * and every slot but the first has FLAG_CONTINUED, so FlightLog can put
+ * the write back together and drop one the ring has partly overwritten.
+ * <p>
+ * record() can be called from any number of threads at once.
+ */
+public class FlightRecorder {
+	
+	/** The bytes were written to the robot */
+	public static final int DIRECTION_OUT = 1;
+	/** The bytes were read from the robot */
+	public static final int DIRECTION_IN = 2;
+	
+	/** Slots used if no count is given, a 1 MiB file */
+	public static final int DEFAULT_SLOTS = 32768;
+	
+	//File layout
+	static final int MAGIC = 0x4A465231;
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 32;
+	static final int SLOT_SIZE = 32;
+	static final int POS_MAGIC = 0;
+	static final int POS_VERSION = 4;
+	static final int POS_SLOT_SIZE = 8;
+	static final int POS_SLOT_COUNT = 12;
+	static final int SLOT_SEQUENCE = 0;
+	static final int SLOT_TIME = 8;
+	static final int SLOT_DIRECTION = 16;
+	static final int SLOT_LENGTH = 17;
+	static final int SLOT_PAYLOAD = 18;
+	/** Largest number of bytes in one slot */
+	public static final int SLOT_PAYLOAD_SIZE = SLOT_SIZE - SLOT_PAYLOAD;
+	/** Set in the direction byte when the next slot holds more of the same write */
+	static final int FLAG_MORE = 0x80;
+	/** Set in the direction byte when the previous slot holds the start of the same write */
+	static final int FLAG_CONTINUED = 0x40;
+	/** Masks the flags out of the direction byte */
+	static final int DIRECTION_MASK = 0x3F;
+	
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	/** The whole file, only absolute puts are used so threads do not share a position */
+	private final MappedByteBuffer mBuffer;
+	private final int mSlots;
+	
+	/** Sequence of the last slot claimed */
+	private final AtomicLong mSequence;
+	/** Wall clock time matching mBaseNanoTime, in nanoseconds */
+	private final long mBaseWallNanos;
+	/** System.nanoTime() when the recorder was opened */
+	private final long mBaseNanoTime;
+	
+	private volatile boolean isClosed = false;
+	
+	/**
+	 * Open a recorder with the default number of slots.
+	 * @param file - The ring file, created if needed
+	 * @throws IOException - If the file can not be created or mapped
+	 */
+	public FlightRecorder(File file) throws IOException
+	{
+		this(file, DEFAULT_SLOTS);
+	}
+	
+	/**
+	 * Open a recorder.  If the file already holds a ring of the same size
+	 * recording carries on after its newest record, otherwise it is wiped.
+	 * @param file - The ring file, created if needed
+	 * @param slots - Number of records the ring holds
+	 * @throws IOException - If the file can not be created or mapped
+	 */
+	public FlightRecorder(File file, int slots) throws IOException
+	{
+		if(file == null)
+			throw new IllegalArgumentException("The file can not be null.");
+		if(slots < 1)
+			throw new IllegalArgumentException("There must be at least one slot.");
+		
+		long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+		mFile = new RandomAccessFile(file, "rw");
+		try
+		{
+			boolean resume = mFile.length() == size && isValidHeader(mFile, slots);
+			if(!resume)
+			{
+				//Start from a file of zeros so every slot reads as empty
+				mFile.setLength(0);
+				mFile.setLength(size);
+			}
+			
+			mChannel = mFile.getChannel();
+			mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			mSlots = slots;
+			
+			if(resume)
+			{
+				mSequence = new AtomicLong(findLastSequence());
+			}
+			else
+			{
+				mBuffer.putInt(POS_MAGIC, MAGIC);
+				mBuffer.putInt(POS_VERSION, VERSION);
+				mBuffer.putInt(POS_SLOT_SIZE, SLOT_SIZE);
+				mBuffer.putInt(POS_SLOT_COUNT, slots);
+				mSequence = new AtomicLong(0);
+			}
+		}
+		catch(IOException e)
+		{
+			mFile.close();
+			throw e;
+		}
+		
+		mBaseNanoTime = System.nanoTime();
+		mBaseWallNanos = System.currentTimeMillis() * 1000000L;
+	}
+	
+	/**
+	 * Record bytes sent to or read from the robot.  This never allocates
+	 * and never waits on the disk.
+	 * @param direction - DIRECTION_OUT or DIRECTION_IN
+	 * @param buffer - Array holding the bytes
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes
+	 */
+	public void record(int direction, byte[] buffer, int offset, int length)
+	{
+		if(isClosed)
+			return;
+		
+		long time = mBaseWallNanos + (System.nanoTime() - mBaseNanoTime);
+		int chunks = Math.max(1, (length + SLOT_PAYLOAD_SIZE - 1) / SLOT_PAYLOAD_SIZE);
+		//Claim every slot of the write at once so they follow each other
+		long sequence = mSequence.getAndAdd(chunks);
+		for(int n = 0; n < chunks; n++)
+		{
+			int chunk = Math.min(length, SLOT_PAYLOAD_SIZE);
+			int flags = (n > 0 ? FLAG_CONTINUED : 0) | (n < chunks - 1 ? FLAG_MORE : 0);
+			sequence++;
+			int slot = HEADER_SIZE + (int) ((sequence - 1) % mSlots) * SLOT_SIZE;
+			
+			//Mark the slot as being written, fill it, then publish it
+			mBuffer.putLong(slot + SLOT_SEQUENCE, 0);
+			mBuffer.putLong(slot + SLOT_TIME, time);
+			mBuffer.put(slot + SLOT_DIRECTION, (byte) (direction | flags));
+			mBuffer.put(slot + SLOT_LENGTH, (byte) chunk);
+			for(int i = 0; i < chunk; i++)
+				mBuffer.put(slot + SLOT_PAYLOAD + i, buffer[offset + i]);
+			mBuffer.putLong(slot + SLOT_SEQUENCE, sequence);
+			
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+	
+	/**
+	 * @return - Number of slots written since the file was created
+	 */
+	public long getRecordCount()
+	{
+		return mSequence.get();
+	}
+	
+	/**
+	 * @return - Number of records the ring holds
+	 */
+	public int getSlotCount()
+	{
+		return mSlots;
+	}
+	
+	/**
+	 * Stop recording and write the ring to disk.  This is the only time the
+	 * file is synced.
+	 */
+	public void close()
+	{
+		if(isClosed)
+			return;
+		isClosed = true;
+		
+		mBuffer.force();
+		try
+		{
+			mFile.close();
+		}
+		catch(IOException e)
+		{  }
+	}
+	
+	/**
+	 * Check that a file holds a ring laid out like this one.
+	 * @param file - The open file
+	 * @param slots - Number of slots expected, or 0 to accept any
+	 * @return - True if the header matches
+	 */
+	static boolean isValidHeader(RandomAccessFile file, int slots) throws IOException
+	{
+		if(file.length() < HEADER_SIZE)
+			return false;
+		file.seek(POS_MAGIC);
+		return file.readInt() == MAGIC
+				&& file.readInt() == VERSION
+				&& file.readInt() == SLOT_SIZE
+				&& (slots == 0 || file.readInt() == slots);
+	}
+	
+	/**
+	 * @return - The newest sequence in the ring, 0 if it is empty
+	 */
+	private long findLastSequence()
+	{
+		long last = 0;
+		for(int i = 0; i < mSlots; i++)
+			last = Math.max(last, mBuffer.getLong(HEADER_SIZE + i * SLOT_SIZE + SLOT_SEQUENCE));
+		return last;
+	}
+}
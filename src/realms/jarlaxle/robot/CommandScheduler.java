@@ -0,0 +1,150 @@
+package realms.jarlaxle.robot;
+
+import realms.jarlaxle.movingcircle.CircleOffset;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/** Drains a JoystickMailbox at a fixed rate and hands the newest
+ * position to a sender.  This bounds the number of commands sent no
+ * matter how fast the joystick is updated.
+ */
+public class CommandScheduler {
+
+	/** Rate used if none is set, in commands per second */
+	public static final int DEFAULT_RATE_HZ = 50;
+	
+	/** Receives the positions taken from the mailbox */
+	public interface Sender
+	{
+		/**
+		 * Called on the scheduler's looper with the newest position.
+		 * @param x - The x offset of the joystick
+		 * @param y - The y offset of the joystick
+		 * @param touchNanos - LatencyTracker stamp of the touch behind the position, 0 if none
+		 */
+		public void send(int x, int y, long touchNanos);
+		
+		/**
+		 * Called on the scheduler's looper on ticks where the joystick
+		 * has not moved, so the sender can keep the robot's watchdog fed.
+		 */
+		public void idle();
+	}
+	
+	/** Handler for the looper that the sender is called on */
+	private final Handler mHandler;
+	/** Mailbox to drain */
+	private final JoystickMailbox mMailbox;
+	/** Where the positions are sent */
+	private final Sender mSender;
+	
+	/** Milliseconds between ticks */
+	private long mPeriod = 1000 / DEFAULT_RATE_HZ;
+	/** Uptime of the next tick, used so the rate does not drift */
+	private long mNextTick;
+	/** Is the scheduler ticking */
+	private boolean isRunning = false;
+	/** Sets the rate from how the connection is coping, may be null */
+	private RateController mRateController = null;
+	
+	/**
+	 * Constructor.
+	 * @param looper - The looper the sender is called on
+	 * @param mailbox - The mailbox to drain
+	 * @param sender - Receives the newest position once per tick
+	 */
+	public CommandScheduler(Looper looper, JoystickMailbox mailbox, Sender sender)
+	{
+		if(looper == null)
+			throw new IllegalArgumentException("The looper can not be null.");
+		if(mailbox == null)
+			throw new IllegalArgumentException("The mailbox can not be null.");
+		if(sender == null)
+			throw new IllegalArgumentException("The sender can not be null.");
+		
+		mHandler = new Handler(looper);
+		mMailbox = mailbox;
+		mSender = sender;
+	}
+	
+	/**
+	 * Set how many times per second the mailbox is drained.
+	 * @param hz - Ticks per second, between 1 and 1000
+	 */
+	public void setRate(int hz)
+	{
+		if(hz < 1 || hz > 1000)
+			throw new IllegalArgumentException("The rate must be between 1 and 1000 Hz.");
+		mPeriod = 1000 / hz;
+	}
+	
+	/**
+	 * Let a controller set the rate.  It is checked on every tick and the
+	 * rate it returns replaces the one set with setRate().
+	 * @param controller - The controller, or null to keep the rate fixed
+	 */
+	public void setRateController(RateController controller)
+	{
+		mRateController = controller;
+	}
+	
+	/**
+	 * @return - The current rate in ticks per second
+	 */
+	public int getRate()
+	{
+		return (int) (1000 / mPeriod);
+	}
+	
+	/**
+	 * Start draining the mailbox.  Must be called on the scheduler's looper.
+	 */
+	public void start()
+	{
+		if(isRunning)
+			return;
+		isRunning = true;
+		mNextTick = SystemClock.uptimeMillis();
+		mHandler.post(mTick);
+	}
+	
+	/**
+	 * Stop draining the mailbox.  Must be called on the scheduler's looper.
+	 */
+	public void stop()
+	{
+		isRunning = false;
+		mHandler.removeCallbacks(mTick);
+	}
+	
+	/**
+	 * Runs once per period, sends the newest position if there is one.
+	 */
+	private final Runnable mTick = new Runnable()
+	{
+		public void run()
+		{
+			if(!isRunning)
+				return;
+			
+			long packed = mMailbox.take();
+			if(packed != JoystickMailbox.EMPTY)
+				mSender.send(CircleOffset.x(packed), CircleOffset.y(packed), mMailbox.getTakenStamp());
+			else
+				mSender.idle();
+			
+			long now = SystemClock.uptimeMillis();
+			RateController controller = mRateController;
+			if(controller != null)
+				mPeriod = 1000 / controller.update(now);
+			
+			//Schedule from the previous tick so the rate does not drift,
+			//but do not try to catch up on ticks that were missed
+			mNextTick += mPeriod;
+			if(mNextTick < now)
+				mNextTick = now;
+			mHandler.postAtTime(mTick, mNextTick);
+		}
+	};
+}
@@ -0,0 +1,251 @@
+package realms.jarlaxle.robot;
+
+/** Sits between the mixer and the link and holds back drive commands
+ * that barely differ from the last one sent.  A command is sent when
+ * either motor has moved by at least the threshold, when a motor comes
+ * to a stop, or when the keepalive interval has passed so the robot's
+ * watchdog keeps getting frames while the joystick is held still.
+ * <p>
+ * Motor values use the mixer's encoding, 0-255 with 128 added when the
+ * motor drives forward, so 0 and 128 both mean stopped.  Times are
+ * passed in so the filter does not depend on any clock.  Not thread safe,
+ * it is meant to be used from the scheduler's looper only.
+ */
+public class DriveFilter {
+	
+	/** Threshold used if none is set, in motor steps */
+	public static final int DEFAULT_THRESHOLD = 3;
+	/** Keepalive interval used if none is set, in milliseconds */
+	public static final long DEFAULT_KEEPALIVE_MILLIS = 200;
+	
+	/** The command should not be sent */
+	public static final int SUPPRESS = 0;
+	/** The command has changed and should be sent */
+	public static final int SEND = 1;
+	/** Nothing changed but the keepalive is due, the command should be sent */
+	public static final int KEEPALIVE = 2;
+	
+	/** Smallest change in either motor that is sent right away */
+	private int mThreshold;
+	/** Longest time between sent commands, in milliseconds */
+	private long mKeepaliveMillis;
+	
+	/** Has anything been sent since the last reset */
+	private boolean hasSent = false;
+	/** Values of the last command sent */
+	private int mSentLeft;
+	private int mSentRight;
+	/** When the last command was sent */
+	private long mSentMillis;
+	/** Values of the newest command offered, sent as the keepalive */
+	private int mLastLeft;
+	private int mLastRight;
+	
+	//Counters
+	private long mOfferedCount = 0;
+	private long mSuppressedCount = 0;
+	private long mKeepaliveCount = 0;
+	
+	/**
+	 * Constructor using the default threshold and keepalive.
+	 */
+	public DriveFilter()
+	{
+		this(DEFAULT_THRESHOLD, DEFAULT_KEEPALIVE_MILLIS);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param threshold - Smallest change in either motor that is sent right away, 1 sends every change
+	 * @param keepaliveMillis - Longest time between sent commands
+	 */
+	public DriveFilter(int threshold, long keepaliveMillis)
+	{
+		setThreshold(threshold);
+		setKeepalive(keepaliveMillis);
+	}
+	
+	/**
+	 * @param threshold - Smallest change in either motor that is sent right away, 1 sends every change
+	 */
+	public void setThreshold(int threshold)
+	{
+		if(threshold < 1)
+			throw new IllegalArgumentException("The threshold must be at least 1.");
+		mThreshold = threshold;
+	}
+	
+	/**
+	 * @param keepaliveMillis - Longest time between sent commands
+	 */
+	public void setKeepalive(long keepaliveMillis)
+	{
+		if(keepaliveMillis <= 0)
+			throw new IllegalArgumentException("The keepalive interval must be positive.");
+		mKeepaliveMillis = keepaliveMillis;
+	}
+	
+	public int getThreshold()
+	{
+		return mThreshold;
+	}
+	
+	public long getKeepalive()
+	{
+		return mKeepaliveMillis;
+	}
+	
+	/**
+	 * Decide whether a new command from the mixer is sent.  If the result
+	 * is not SUPPRESS the command is taken to have been sent at now.
+	 * @param left - Left motor value
+	 * @param right - Right motor value
+	 * @param now - Current time in milliseconds
+	 * @return - SEND, KEEPALIVE or SUPPRESS
+	 */
+	public int offer(int left, int right, long now)
+	{
+		mOfferedCount++;
+		mLastLeft = left;
+		mLastRight = right;
+		
+		if(!hasSent || changed(mSentLeft, left) || changed(mSentRight, right))
+		{
+			sent(left, right, now);
+			return SEND;
+		}
+		if(now - mSentMillis >= mKeepaliveMillis)
+		{
+			sent(left, right, now);
+			mKeepaliveCount++;
+			return KEEPALIVE;
+		}
+		
+		mSuppressedCount++;
+		return SUPPRESS;
+	}
+	
+	/**
+	 * Call when there is no new command, checks whether the keepalive is
+	 * due.  If it returns KEEPALIVE the newest offered command should be
+	 * sent again, see getLeft() and getRight().
+	 * @param now - Current time in milliseconds
+	 * @return - KEEPALIVE or SUPPRESS
+	 */
+	public int poll(long now)
+	{
+		if(!hasSent || now - mSentMillis < mKeepaliveMillis)
+			return SUPPRESS;
+		
+		sent(mLastLeft, mLastRight, now);
+		mKeepaliveCount++;
+		return KEEPALIVE;
+	}
+	
+	/**
+	 * Forget the last command so the next one is always sent.  Call
+	 * after a new connection is made.
+	 */
+	public void reset()
+	{
+		hasSent = false;
+	}
+	
+	/**
+	 * @return - The left value of the newest offered command
+	 */
+	public int getLeft()
+	{
+		return mLastLeft;
+	}
+	
+	/**
+	 * @return - The right value of the newest offered command
+	 */
+	public int getRight()
+	{
+		return mLastRight;
+	}
+	
+	/**
+	 * @return - Number of commands offered by the mixer
+	 */
+	public long getOfferedCount()
+	{
+		return mOfferedCount;
+	}
+	
+	/**
+	 * @return - Number of offered commands that were held back
+	 */
+	public long getSuppressedCount()
+	{
+		return mSuppressedCount;
+	}
+	
+	/**
+	 * @return - Number of commands sent only to feed the watchdog
+	 */
+	public long getKeepaliveCount()
+	{
+		return mKeepaliveCount;
+	}
+	
+	/**
+	 * @return - Fraction of offered commands that were held back, 0 if none were offered
+	 */
+	public double getSuppressionRatio()
+	{
+		if(mOfferedCount == 0)
+			return 0;
+		return (double) mSuppressedCount / mOfferedCount;
+	}
+	
+	/**
+	 * Reset every counter.
+	 */
+	public void resetCounters()
+	{
+		mOfferedCount = 0;
+		mSuppressedCount = 0;
+		mKeepaliveCount = 0;
+	}
+	
+	/**
+	 * Record that a command was sent.
+	 */
+	private void sent(int left, int right, long now)
+	{
+		hasSent = true;
+		mSentLeft = left;
+		mSentRight = right;
+		mSentMillis = now;
+	}
+	
+	/**
+	 * Has a motor changed enough to send.  Values are compared as signed
+	 * speeds so a change of direction is measured correctly, and coming to
+	 * a stop is always sent.
+	 * @param sent - The value last sent
+	 * @param value - The new value
+	 * @return - True if the new value should be sent
+	 */
+	private boolean changed(int sent, int value)
+	{
+		int from = speed(sent);
+		int to = speed(value);
+		if(to == 0)
+			return from != 0;
+		return Math.abs(to - from) >= mThreshold;
+	}
+	
+	/**
+	 * @param value - A motor value from the mixer
+	 * @return - The speed with its sign, negative for reverse
+	 */
+	private static int speed(int value)
+	{
+		int magnitude = value & 0x7F;
+		return (value & 0x80) != 0 ? magnitude : -magnitude;
+	}
+}
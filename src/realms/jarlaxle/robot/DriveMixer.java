@@ -0,0 +1,114 @@
+package realms.jarlaxle.robot;
+
+/** Converts joystick offsets into left and right motor values for a
+ * differential drive robot.  Every offset the joystick can reach is
+ * computed once up front, so mixing is a single array lookup.
+ * <p>
+ * Motor values are 0-255, with 128 added when the motor drives forward.
+ * Both values are returned packed into one int, left in bits 8-15 and
+ * right in bits 0-7.
+ */
+public final class DriveMixer {
+
+	/** Largest offset the joystick can reach along either axis */
+	public static final int RANGE = 126;
+	
+	/** Number of entries along one side of the table */
+	private static final int SIDE = 2 * RANGE + 1;
+	
+	/** Packed left/right values, indexed by (y + RANGE) * SIDE + (x + RANGE) */
+	private static final short[] TABLE = new short[SIDE * SIDE];
+	
+	static
+	{
+		for(int y = -RANGE; y <= RANGE; y++)
+			for(int x = -RANGE; x <= RANGE; x++)
+				TABLE[(y + RANGE) * SIDE + (x + RANGE)] = (short) mixExact(x, y);
+	}
+	
+	private DriveMixer()
+	{}
+	
+	/**
+	 * Mix a joystick offset into motor values.
+	 * @param X - The x offset, positive to the right
+	 * @param Y - The y offset, positive forward
+	 * @return - Left and right motor values packed as described above
+	 */
+	public static int mix(int X, int Y)
+	{
+		if(X < -RANGE || X > RANGE || Y < -RANGE || Y > RANGE)
+			return mixExact(X, Y);
+		return TABLE[(Y + RANGE) * SIDE + (X + RANGE)] & 0xFFFF;
+	}
+	
+	/**
+	 * @param packed - A value returned by mix()
+	 * @return - The left motor value
+	 */
+	public static int left(int packed)
+	{
+		return (packed >> 8) & 0xFF;
+	}
+	
+	/**
+	 * @param packed - A value returned by mix()
+	 * @return - The right motor value
+	 */
+	public static int right(int packed)
+	{
+		return packed & 0xFF;
+	}
+	
+	/**
+	 * Mix a joystick offset using the original floating point formula.
+	 * This is what fills the table, and is used for offsets outside it.
+	 * @param X - The x offset, positive to the right
+	 * @param Y - The y offset, positive forward
+	 * @return - Left and right motor values packed as described above
+	 */
+	public static int mixExact(int X, int Y)
+	{
+		int xSign = 1;
+		if(X < 0)
+		{
+			xSign = -1;
+		}
+		double magnitude = Math.abs(Y);
+		int right = 0;
+		int left = 0;
+		
+		if(Y >=0)
+		{
+			right = (int) Math.sqrt(Math.abs(magnitude*magnitude - X*X*xSign));
+			left = (int) Math.sqrt(Math.abs(magnitude*magnitude + X*X*xSign));
+			
+			if((magnitude*magnitude - X*X*xSign) > 0)
+			{
+				right += 128;
+			}
+			
+			if((magnitude*magnitude + X*X*xSign) > 0)
+			{
+				left += 128;
+			}
+		}
+		else if(Y < 0)
+		{
+			right = (int) Math.sqrt(Math.abs(-1*magnitude*magnitude + X*X*xSign));
+			left = (int) Math.sqrt(Math.abs(-1*magnitude*magnitude - X*X*xSign));
+			
+			if(-1*magnitude*magnitude + X*X*xSign > 0)
+			{
+				right += 128;
+			}
+			
+			if(-1*magnitude*magnitude - X*X*xSign > 0)
+			{
+				left += 128;
+			}
+		}
+		
+		return ((left & 0xFF) << 8) | (right & 0xFF);
+	}
+}
@@ -2,7 +2,17 @@ package realms.jarlaxle.robot;
 
 import realms.jarlaxle.movingcircle.MovingCircleListener;
 import realms.jarlaxle.bluetoothutility.BluetoothClass;
+import realms.jarlaxle.bluetoothutility.ConnectionListener;
+import realms.jarlaxle.metrics.LatencyTracker;
+import realms.jarlaxle.movingcircle.FrameTimer;
 import realms.jarlaxle.movingcircle.MovingCircleFragment;
+import realms.jarlaxle.protocol.DriveFrame;
+import realms.jarlaxle.protocol.Heartbeat;
+import realms.jarlaxle.recorder.FlightRecorder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -11,14 +21,14 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
 import android.content.DialogInterface.OnClickListener;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
-public class JarlaxleActivity extends Activity  implements MovingCircleListener{
+public class JarlaxleActivity extends Activity  implements MovingCircleListener, CommandScheduler.Sender{
 	
 	/** The moving circle fragment that the user sees*/
 	protected MovingCircleFragment mCircleFragment = new MovingCircleFragment();
@@ -29,18 +39,91 @@ public class JarlaxleActivity extends Activity  implements MovingCircleListener{
 	/** Dialog for user to know a connection is being made. */
 	private ProgressDialog mDialog;
 	
+	/** Frame reused for every drive command */
+	private final DriveFrame mDriveFrame = new DriveFrame();
+	/** Buffer the drive frame is encoded into */
+	private final byte[] mFrameBuffer = new byte[DriveFrame.LENGTH];
+	/** Sequence number of the next drive frame */
+	private int mSequence = 0;
+	/** Holds back drive commands that barely changed, and sends keepalives */
+	private final DriveFilter mDriveFilter = new DriveFilter();
+	
+	/** Newest circle position, written by the circle's thread */
+	private final JoystickMailbox mMailbox = new JoystickMailbox();
+	/** Sends the newest circle position at a fixed rate */
+	private CommandScheduler mScheduler;
+	/** Sets the scheduler's rate from how the connection is coping */
+	private RateController mRateController;
+	
+	/** Times touches on their way to the robot */
+	private final LatencyTracker mLatency = new LatencyTracker();
+	/** File the latency report is written to */
+	private static final String LATENCY_FILE = "latency.txt";
+	
+	/** Records everything sent to and read from the robot, null if the file could not be opened */
+	private FlightRecorder mRecorder;
+	/** Ring file the recorder writes to */
+	private static final String RECORDER_FILE = "flight.rec";
+	
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
         
-        mBluetooth = new BluetoothClass(this, mHandler);
+        mScheduler = new CommandScheduler(getMainLooper(), mMailbox, this);
+        
+        mBluetooth = new BluetoothClass(this);
+        mBluetooth.registerListener(mConnectionListener);
         if(!mBluetooth.isBluetoothAvailable())
 		{
 			Toast.makeText(this, "Bluetooth is not available.", Toast.LENGTH_LONG).show();
 			finish();
 		}
+        
+        //Send as fast as the connection allows without building a backlog
+        mRateController = new RateController(new RateController.Probe()
+        {
+			public long getWrittenCount() {
+				return mBluetooth != null ? mBluetooth.getWrittenCount() : 0;
+			}
+			
+			public long getWriteNanos() {
+				return mBluetooth != null ? mBluetooth.getWriteNanos() : 0;
+			}
+			
+			public int getQueueDepth() {
+				return mBluetooth != null ? mBluetooth.getQueueDepth() : 0;
+			}
+        });
+        mScheduler.setRateController(mRateController);
+        
+        //Keep a record of the session, pull it with adb and replay it with tools/replay.sh
+        try
+        {
+        	mRecorder = new FlightRecorder(new File(getFilesDir(), RECORDER_FILE));
+        	mBluetooth.setFlightRecorder(mRecorder);
+        }
+        catch(IOException e)
+        {
+        	Log.w("JarlaxleActivity", "Could not open the flight recorder", e);
+        }
+        
+        //Time touches all the way to the socket, long press the position to dump the report
+        mBluetooth.setLatencyTracker(mLatency);
+        
+        //Ping the robot so a dead connection is noticed within a second, pings only
+        //start once it sends telemetry so firmware without PING is left alone
+        mBluetooth.setHeartbeat(Heartbeat.DEFAULT_INTERVAL_MILLIS, Heartbeat.DEFAULT_MAX_MISSES);
+        MovingCircleFragment fragment = (MovingCircleFragment)getFragmentManager().findFragmentById(R.id.movingCircleFragment);
+        fragment.setLatencyTracker(mLatency);
+        findViewById(R.id.position).setOnLongClickListener(new View.OnLongClickListener()
+        {
+			public boolean onLongClick(View v) {
+				dumpLatency();
+				return true;
+			}
+        });
     }
     
 	
@@ -65,15 +148,19 @@ public class JarlaxleActivity extends Activity  implements MovingCircleListener{
 		//Register this as a listener to the MovingCircleView
     	MovingCircleFragment fragment = (MovingCircleFragment)getFragmentManager().findFragmentById(R.id.movingCircleFragment);
     	fragment.registerListener(this);
+    	
+    	mScheduler.start();
 	}
 	
 	/**
 	 * Activity is no longer visible.
 	 */
-	public void onPaue()
+	public void onPause()
 	{
 		super.onPause();
 		
+		mScheduler.stop();
+		
 		//unregister this as a listener to the MovingCircleView
     	MovingCircleFragment fragment = (MovingCircleFragment)getFragmentManager().findFragmentById(R.id.movingCircleFragment);
     	fragment.unregisterListener(this);
@@ -87,10 +174,16 @@ public class JarlaxleActivity extends Activity  implements MovingCircleListener{
 		super.onDestroy();
 		if(mBluetooth != null)
 		{
-			mBluetooth.cancel();
+			mBluetooth.close();
 			mBluetooth = null;
 		}
 		
+		if(mRecorder != null)
+		{
+			mRecorder.close();
+			mRecorder = null;
+		}
+		
 		if(mDialog != null)
 		{
 			mDialog.cancel();
@@ -191,130 +284,195 @@ public class JarlaxleActivity extends Activity  implements MovingCircleListener{
   	}
   	
   	/**
-  	 * This class will handle any messages that come from
-  	 * the bluetooth class.
+  	 * This listener handles the connection changes that come from
+  	 * the bluetooth class.  They arrive on its threads, so each one
+  	 * is posted to the UI thread.
   	 */
-  	private final Handler mHandler = new Handler()
+  	private final ConnectionListener mConnectionListener = new ConnectionListener()
   	{
-  		@Override
-  		public void handleMessage(Message msg)
+  		public void onConnected(final String deviceName)
   		{
-  				switch(msg.what)
+  			runOnUiThread(new Runnable()
+  			{
+  				public void run()
   				{
-  				case BluetoothClass.MESSAGE_CONNECTION_COMPLETE:
+  					//Make sure the new connection gets the current command right away,
+  					//and measure it from scratch
+  					mDriveFilter.reset();
+  					mRateController.reset();
   					if(mDialog != null)
   					{
   						mDialog.dismiss();
   						mDialog = null;
   					}
-  					break;
-  				case BluetoothClass.MESSAGE_DEVICE_NAME:
-  					String deviceName = msg.getData().getString(BluetoothClass.BUNDLE_DEVICE_NAME); 
   					((TextView)findViewById(R.id.device)).setText(deviceName);
-  					break;
-  				case BluetoothClass.MESSAGE_CONNECTION_LOST:
+  				}
+  			});
+  		}
+  		
+  		public void onReconnecting()
+  		{
+  			runOnUiThread(new Runnable()
+  			{
+  				public void run()
+  				{
+  					((TextView)findViewById(R.id.device)).setText("Reconnecting");
+  				}
+  			});
+  		}
+  		
+  		public void onConnectionLost()
+  		{
+  			runOnUiThread(new Runnable()
+  			{
+  				public void run()
+  				{
   					Toast.makeText(getApplicationContext(), "Connection Lost", Toast.LENGTH_LONG).show();
   					((TextView)findViewById(R.id.device)).setText("No Connection");
-  					break;
-  				case BluetoothClass.MESSAGE_ERROR_CONNECTING:
+  				}
+  			});
+  		}
+  		
+  		public void onConnectFailed()
+  		{
+  			runOnUiThread(new Runnable()
+  			{
+  				public void run()
+  				{
   					Toast.makeText(getApplicationContext(), "No device found", Toast.LENGTH_LONG).show();
-  					mBluetooth.cancel();
   					if(mDialog != null)
   						mDialog.dismiss();
   					mDialog = null;
-  					break;
   				}
-  						
+  			});
   		}
   	};
   	
   	/**
      * When the circle moves then we want to change
-     * the value in the text box.
+     * the value in the text box.  This is called on the circle's
+     * thread, so only the newest position is stored and the scheduler
+     * sends it.
      */
-    public void onCircleMoved(final int X, final int Y) {
-    	runOnUiThread(new Runnable()
-		{
-			public void run() {
-				sendRightLeft(X, Y);
-			}
-			
-		});
+    public void onCircleMoved(int X, int Y, long touchNanos) {
+    	mMailbox.post(X, Y, touchNanos);
 	}
+    
+    /**
+     * Called by the scheduler on the UI thread with the newest circle position.
+     */
+    public void send(int X, int Y, long touchNanos) {
+    	sendRightLeft(X, Y, touchNanos);
+    }
+    
+    /**
+     * Called by the scheduler on the UI thread when the circle has not moved.
+     */
+    public void idle() {
+    	if(mBluetooth == null || !mBluetooth.isConnected())
+    		return;
+    	
+    	if(mDriveFilter.poll(SystemClock.uptimeMillis()) == DriveFilter.KEEPALIVE)
+    		sendDrive(mDriveFilter.getLeft(), mDriveFilter.getRight(), DriveFrame.FLAG_KEEPALIVE, 0);
+    }
   	
   	//---------------------------------------------------------------------------------
   	
   //--------------------------Bluetooth Management-----------------------------------
 	
   	/**
-  	 * Sends data over bluetooth.
-  	 * @param data - The data to write to the bluetooth stream
+  	 * Sends a drive frame over bluetooth in a single write.
+  	 * @param left - The value for the left motor
+  	 * @param right - The value for the right motor
+  	 * @param flags - Flag bits for the frame, see DriveFrame
+  	 * @param touchNanos - LatencyTracker stamp of the touch behind the frame, 0 if none
   	 */
-  	protected void sendData(char data)
+  	protected void sendDrive(int left, int right, int flags, long touchNanos)
   	{
   		if(mBluetooth != null && mBluetooth.isConnected())
   		{
-  			mBluetooth.write(data);
+  			mDriveFrame.set(mSequence++, left, right, flags);
+  			int length = mDriveFrame.encode(mFrameBuffer, 0);
+  			mBluetooth.write(mFrameBuffer, 0, length, touchNanos);
   		}
   	}
   	
   	//---------------------------------------------------------------------------------
   	
-  	//-----------------------Robot Conversion------------------------------------------
+  	//-----------------------Diagnostics-----------------------------------------------
   	
   	/**
-  	 * Converts X and Y values into values that can be used by the robot.
-  	 * @param X - The x coordinate for conversion.
-  	 * @param Y - The y coordinate for conversion.
+  	 * Write the latency report to logcat and to a file in the app's files directory.
   	 */
-  	protected void sendRightLeft(int X, int Y)
+  	public void dumpLatency()
   	{
-  		int xSign = 1;
-  		if(X < 0)
-  		{
-  			xSign = -1;
-  		}
-  		double magnitude = Math.abs(Y);
-  		int right = 0;
-  		int left = 0;
+  		Heartbeat heartbeat = mBluetooth != null ? mBluetooth.getHeartbeat() : null;
+  		MovingCircleFragment fragment = (MovingCircleFragment)getFragmentManager().findFragmentById(R.id.movingCircleFragment);
+  		FrameTimer frames = fragment.getFrameTimer();
+  		String report = mLatency.getReport()
+  				+ (frames == null ? "" : String.format("frames (%s): %d drawn, average %.2f ms, longest %.2f ms%n",
+  						fragment.getRendererName(), frames.getFrameCount(), frames.getAverageNanos() / 1e6, frames.getMaxNanos() / 1e6))
+  				+ String.format("drive commands: %d offered, %d suppressed (%.1f%%), %d keepalives%n",
+  						mDriveFilter.getOfferedCount(), mDriveFilter.getSuppressedCount(),
+  						mDriveFilter.getSuppressionRatio() * 100, mDriveFilter.getKeepaliveCount())
+  				+ String.format("command rate: %d Hz, average write %.2f ms, %d increases, %d decreases%n",
+  						mRateController.getRate(), mRateController.getAverageWriteNanos() / 1e6,
+  						mRateController.getIncreaseCount(), mRateController.getDecreaseCount())
+  				+ (heartbeat == null ? "" : String.format("round trip: %.2f ms, jitter %.2f ms, p99 %.2f ms, %.1f%% pings lost%n",
+  						heartbeat.getRttNanos() / 1e6, heartbeat.getJitterNanos() / 1e6,
+  						heartbeat.getRttHistogram().getPercentile(99) / 1e6, heartbeat.getLossRatio() * 100));
+  		Log.i("JarlaxleActivity", "Touch to wire latency:\n" + report);
   		
-  		if(Y >=0)
+  		File file = new File(getFilesDir(), LATENCY_FILE);
+  		try
   		{
-  			right = (int) Math.sqrt(Math.abs(magnitude*magnitude - X*X*xSign));
-  	  		left = (int) Math.sqrt(Math.abs(magnitude*magnitude + X*X*xSign));
-  			
-  	  		if((magnitude*magnitude - X*X*xSign) > 0)
+  			FileWriter writer = new FileWriter(file);
+  			try
   			{
-  				right += 128;
+  				writer.write(report);
   			}
-
-  			if((magnitude*magnitude + X*X*xSign) > 0)
+  			finally
   			{
-  				left += 128;
+  				writer.close();
   			}
+  			Toast.makeText(this, "Latency written to " + file.getPath(), Toast.LENGTH_SHORT).show();
   		}
-  		else if(Y < 0)
+  		catch(IOException e)
   		{
-  			right = (int) Math.sqrt(Math.abs(-1*magnitude*magnitude + X*X*xSign));
-  	  		left = (int) Math.sqrt(Math.abs(-1*magnitude*magnitude - X*X*xSign));
-  	  		
-  			if(-1*magnitude*magnitude + X*X*xSign > 0)
-  			{
-  				right += 128;
-  			}
-  			
-  			if(-1*magnitude*magnitude - X*X*xSign > 0)
-  			{
-  				left += 128;
-  			}  		
+  			Log.w("JarlaxleActivity", "Could not write latency report", e);
   		}
-  		
-  		char rightSend = (char)right;
-  		char leftSend = (char)left;
+  	}
+  	
+  	//---------------------------------------------------------------------------------
+  	
+  	//-----------------------Robot Conversion------------------------------------------
+  	
+  	/**
+  	 * Converts X and Y values into values that can be used by the robot.
+  	 * @param X - The x coordinate for conversion.
+  	 * @param Y - The y coordinate for conversion.
+  	 * @param touchNanos - LatencyTracker stamp of the touch behind the position, 0 if none
+  	 */
+  	protected void sendRightLeft(int X, int Y, long touchNanos)
+  	{
+  		int mixed = DriveMixer.mix(X, Y);
+  		int right = DriveMixer.right(mixed);
+  		int left = DriveMixer.left(mixed);
+  		mLatency.record(LatencyTracker.STAGE_MIXER, touchNanos);
 
   		((TextView)findViewById(R.id.position)).setText(X + ", " + Y + ", " + right + ", " + left);
-  		sendData(rightSend);
-  		sendData(leftSend);
+  		if(mBluetooth == null || !mBluetooth.isConnected())
+  			return;
+  		
+  		switch(mDriveFilter.offer(left, right, SystemClock.uptimeMillis()))
+  		{
+  		case DriveFilter.SEND:
+  			sendDrive(left, right, 0, touchNanos);
+  			break;
+  		case DriveFilter.KEEPALIVE:
+  			sendDrive(left, right, DriveFrame.FLAG_KEEPALIVE, 0);
+  			break;
+  		}
   		
   	}
   	
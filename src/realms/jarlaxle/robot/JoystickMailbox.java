@@ -0,0 +1,57 @@
+package realms.jarlaxle.robot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import realms.jarlaxle.movingcircle.CircleOffset;
+
+/** Holds only the most recent joystick position.  The render thread
+ * overwrites the slot as often as it likes and the reader takes whatever
+ * is there when it is ready, so old positions are never queued up.
+ */
+public class JoystickMailbox {
+
+	/** Value of the slot when nothing new has been posted */
+	public static final long EMPTY = CircleOffset.NONE;
+	
+	/** The position, packed as described in CircleOffset */
+	private final AtomicLong mSlot = new AtomicLong(EMPTY);
+	
+	/** LatencyTracker stamp of the touch behind the waiting position.  Written
+	 * before the slot, so a take can only pair a position with a newer stamp */
+	private volatile long mStamp = 0;
+	
+	/** Stamp of the position returned by the last take, only used by the reader */
+	private long mTakenStamp = 0;
+	
+	/**
+	 * Replace whatever position is waiting with a new one.
+	 * @param x - The x offset of the joystick
+	 * @param y - The y offset of the joystick
+	 * @param touchNanos - Stamp of the touch that moved the joystick, 0 if it moved on its own
+	 */
+	public void post(int x, int y, long touchNanos)
+	{
+		mStamp = touchNanos;
+		mSlot.set(CircleOffset.pack(x, y));
+	}
+	
+	/**
+	 * Take the waiting position, leaving the slot empty.
+	 * @return - The packed position or EMPTY if nothing was posted since the last take
+	 */
+	public long take()
+	{
+		long packed = mSlot.getAndSet(EMPTY);
+		mTakenStamp = packed == EMPTY ? 0 : mStamp;
+		return packed;
+	}
+	
+	/**
+	 * @return - Stamp of the touch behind the position returned by the last
+	 * take(), 0 if it returned EMPTY or the position did not come from a touch
+	 */
+	public long getTakenStamp()
+	{
+		return mTakenStamp;
+	}
+}
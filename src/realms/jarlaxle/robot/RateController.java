@@ -0,0 +1,223 @@
+package realms.jarlaxle.robot;
+
+/** Picks the command rate from how the connection is coping, so the
+ * scheduler sends as often as the radio allows without building a
+ * backlog.  Once per period the average time a write blocked and the
+ * depth of the write queue are checked.  If either is over its limit the
+ * rate is cut by a factor, otherwise it is raised by a fixed step: the
+ * same additive increase, multiplicative decrease loop TCP uses.
+ * <p>
+ * Not thread safe, it is meant to be driven by the CommandScheduler.
+ */
+public class RateController {
+	
+	/** Where the controller reads the state of the connection */
+	public interface Probe
+	{
+		/**
+		 * @return - Number of commands written so far
+		 */
+		public long getWrittenCount();
+		
+		/**
+		 * @return - Total nanoseconds spent blocked in writes so far
+		 */
+		public long getWriteNanos();
+		
+		/**
+		 * @return - Number of commands waiting to be written
+		 */
+		public int getQueueDepth();
+	}
+	
+	//Defaults
+	/** Rate used until the first update, the scheduler's default */
+	public static final int DEFAULT_START_RATE_HZ = 50;
+	public static final int DEFAULT_MIN_RATE_HZ = 10;
+	public static final int DEFAULT_MAX_RATE_HZ = 100;
+	/** Hz added after a period without congestion */
+	public static final double DEFAULT_INCREASE = 2;
+	/** Factor the rate is multiplied by after a congested period */
+	public static final double DEFAULT_DECREASE = 0.5;
+	/** Average write time above which the connection is congested */
+	public static final long DEFAULT_WRITE_LIMIT_NANOS = 8000000;
+	/** Queue depth above which the connection is congested */
+	public static final int DEFAULT_QUEUE_LIMIT = 2;
+	/** Milliseconds between updates */
+	public static final long DEFAULT_PERIOD_MILLIS = 250;
+	
+	private final Probe mProbe;
+	
+	//Settings
+	private int mMinRate = DEFAULT_MIN_RATE_HZ;
+	private int mMaxRate = DEFAULT_MAX_RATE_HZ;
+	private double mIncrease = DEFAULT_INCREASE;
+	private double mDecrease = DEFAULT_DECREASE;
+	private long mWriteLimit = DEFAULT_WRITE_LIMIT_NANOS;
+	private int mQueueLimit = DEFAULT_QUEUE_LIMIT;
+	private long mPeriod = DEFAULT_PERIOD_MILLIS;
+	
+	/** Current rate, kept as a double so small steps add up */
+	private double mRate;
+	/** Time of the next update, 0 before the first */
+	private long mNextUpdate = 0;
+	/** Probe readings at the last update */
+	private long mLastWritten;
+	private long mLastWriteNanos;
+	/** Average write time over the last period, in nanoseconds */
+	private long mAverageWrite = 0;
+	
+	//Counters
+	private long mIncreaseCount = 0;
+	private long mDecreaseCount = 0;
+	
+	/**
+	 * Constructor, starts at DEFAULT_START_RATE_HZ.
+	 * @param probe - Where the state of the connection is read
+	 */
+	public RateController(Probe probe)
+	{
+		if(probe == null)
+			throw new IllegalArgumentException("The probe can not be null.");
+		mProbe = probe;
+		mRate = DEFAULT_START_RATE_HZ;
+	}
+	
+	/**
+	 * Set the range the rate is kept in.
+	 * @param minHz - Lowest rate, at least 1
+	 * @param maxHz - Highest rate, at most 1000
+	 */
+	public void setBounds(int minHz, int maxHz)
+	{
+		if(minHz < 1 || maxHz > 1000 || minHz > maxHz)
+			throw new IllegalArgumentException("The bounds must satisfy 1 <= min <= max <= 1000.");
+		mMinRate = minHz;
+		mMaxRate = maxHz;
+		mRate = Math.max(mMinRate, Math.min(mMaxRate, mRate));
+	}
+	
+	/**
+	 * Set how the rate changes.
+	 * @param increase - Hz added after a period without congestion
+	 * @param decrease - Factor the rate is multiplied by after a congested period, between 0 and 1
+	 */
+	public void setSteps(double increase, double decrease)
+	{
+		if(increase <= 0)
+			throw new IllegalArgumentException("The increase must be positive.");
+		if(decrease <= 0 || decrease >= 1)
+			throw new IllegalArgumentException("The decrease must be between 0 and 1.");
+		mIncrease = increase;
+		mDecrease = decrease;
+	}
+	
+	/**
+	 * Set what counts as congestion.
+	 * @param writeNanos - Average write time above which the connection is congested
+	 * @param queueDepth - Queue depth above which the connection is congested
+	 */
+	public void setLimits(long writeNanos, int queueDepth)
+	{
+		if(writeNanos <= 0 || queueDepth < 0)
+			throw new IllegalArgumentException("The limits can not be negative.");
+		mWriteLimit = writeNanos;
+		mQueueLimit = queueDepth;
+	}
+	
+	/**
+	 * @param millis - Milliseconds between updates
+	 */
+	public void setPeriod(long millis)
+	{
+		if(millis <= 0)
+			throw new IllegalArgumentException("The period must be positive.");
+		mPeriod = millis;
+	}
+	
+	/**
+	 * Update the rate if a period has passed since the last update.
+	 * @param now - Current time in milliseconds
+	 * @return - The rate to send at, in Hz
+	 */
+	public int update(long now)
+	{
+		if(mNextUpdate == 0)
+		{
+			//Start measuring from here
+			mNextUpdate = now + mPeriod;
+			mLastWritten = mProbe.getWrittenCount();
+			mLastWriteNanos = mProbe.getWriteNanos();
+			return getRate();
+		}
+		if(now < mNextUpdate)
+			return getRate();
+		mNextUpdate = now + mPeriod;
+		
+		long written = mProbe.getWrittenCount();
+		long writeNanos = mProbe.getWriteNanos();
+		long count = written - mLastWritten;
+		long nanos = writeNanos - mLastWriteNanos;
+		mLastWritten = written;
+		mLastWriteNanos = writeNanos;
+		
+		if(count > 0)
+			mAverageWrite = nanos / count;
+		
+		if(mProbe.getQueueDepth() > mQueueLimit || (count > 0 && mAverageWrite > mWriteLimit))
+		{
+			mRate = Math.max(mMinRate, mRate * mDecrease);
+			mDecreaseCount++;
+		}
+		else if(count > 0 && mRate < mMaxRate)
+		{
+			//Only probe for more when commands are actually going out
+			mRate = Math.min(mMaxRate, mRate + mIncrease);
+			mIncreaseCount++;
+		}
+		return getRate();
+	}
+	
+	/**
+	 * Go back to the starting rate and measure from scratch.  Call after
+	 * a new connection is made.
+	 */
+	public void reset()
+	{
+		mRate = Math.max(mMinRate, Math.min(mMaxRate, DEFAULT_START_RATE_HZ));
+		mNextUpdate = 0;
+		mAverageWrite = 0;
+	}
+	
+	/**
+	 * @return - The rate commands are sent at, in Hz
+	 */
+	public int getRate()
+	{
+		return (int) mRate;
+	}
+	
+	/**
+	 * @return - Average time a write blocked over the last period with writes, in nanoseconds
+	 */
+	public long getAverageWriteNanos()
+	{
+		return mAverageWrite;
+	}
+	
+	/**
+	 * @return - Number of times the rate was raised
+	 */
+	public long getIncreaseCount()
+	{
+		return mIncreaseCount;
+	}
+	
+	/**
+	 * @return - Number of times the rate was cut
+	 */
+	public long getDecreaseCount()
+	{
+		return mDecreaseCount;
+	}
+}
@@ -0,0 +1,80 @@
+package realms.jarlaxle.transport;
+
+import java.util.Random;
+
+/** Capped exponential backoff with jitter, used to space out connection
+ * attempts.  Each delay is the previous one times the multiplier, up to
+ * the maximum, and then shortened by a random amount so that several
+ * controllers do not retry in lock step.
+ */
+public class Backoff {
+
+	/** Default delay before the first retry, in milliseconds */
+	public static final long DEFAULT_INITIAL_DELAY = 100;
+	/** Default longest delay, in milliseconds */
+	public static final long DEFAULT_MAX_DELAY = 5000;
+	/** Default growth of the delay after each failure */
+	public static final double DEFAULT_MULTIPLIER = 2.0;
+	/** Default fraction of each delay that may be removed at random */
+	public static final double DEFAULT_JITTER = 0.5;
+	
+	private final long mInitialDelay;
+	private final long mMaxDelay;
+	private final double mMultiplier;
+	private final double mJitter;
+	private final Random mRandom;
+	
+	/** Delay before jitter that the next call to nextDelay() uses */
+	private long mCurrentDelay;
+	
+	/**
+	 * Constructor using the default values.
+	 */
+	public Backoff()
+	{
+		this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MULTIPLIER, DEFAULT_JITTER);
+	}
+	
+	/**
+	 * Constructor.
+	 * @param initialDelay - Delay before the first retry, in milliseconds
+	 * @param maxDelay - Longest delay, in milliseconds
+	 * @param multiplier - Growth of the delay after each failure, at least 1
+	 * @param jitter - Fraction of each delay that may be removed at random, 0 to 1
+	 */
+	public Backoff(long initialDelay, long maxDelay, double multiplier, double jitter)
+	{
+		if(initialDelay <= 0 || maxDelay < initialDelay)
+			throw new IllegalArgumentException("Delays must be positive and the maximum can not be less than the initial delay.");
+		if(multiplier < 1)
+			throw new IllegalArgumentException("The multiplier can not be less than 1.");
+		if(jitter < 0 || jitter > 1)
+			throw new IllegalArgumentException("The jitter must be between 0 and 1.");
+		
+		mInitialDelay = initialDelay;
+		mMaxDelay = maxDelay;
+		mMultiplier = multiplier;
+		mJitter = jitter;
+		mRandom = new Random();
+		mCurrentDelay = initialDelay;
+	}
+	
+	/**
+	 * Get the delay before the next attempt and grow the delay after it.
+	 * @return - Milliseconds to wait
+	 */
+	public synchronized long nextDelay()
+	{
+		long delay = mCurrentDelay;
+		mCurrentDelay = Math.min(mMaxDelay, (long) (mCurrentDelay * mMultiplier));
+		return delay - (long) (delay * mJitter * mRandom.nextDouble());
+	}
+	
+	/**
+	 * Go back to the initial delay, called after a successful connection.
+	 */
+	public synchronized void reset()
+	{
+		mCurrentDelay = mInitialDelay;
+	}
+}
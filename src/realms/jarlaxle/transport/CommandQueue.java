@@ -0,0 +1,216 @@
+package realms.jarlaxle.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A bounded ring buffer of outgoing commands.  It is meant to be
+ * filled by a single producer (normally the UI thread) and drained by
+ * a single consumer (the writer thread).  Every slot is allocated up front
+ * so that queueing a command never allocates.
+ */
+public class CommandQueue {
+
+	/** What to do with a command when the queue is full */
+	public enum DropPolicy
+	{
+		/** Throw away the command that is being queued */
+		DROP_NEWEST,
+		/** Throw away the oldest queued command to make room */
+		DROP_OLDEST
+	}
+
+	/** Default number of commands that can be waiting */
+	public static final int DEFAULT_DEPTH = 64;
+	/** Longest command that fits in a slot, in bytes */
+	public static final int MAX_COMMAND_LENGTH = 16;
+
+	/** Storage for the commands */
+	private final byte[][] mSlots;
+	/** Length of the command in each slot */
+	private final int[] mLengths;
+	/** Time stamp given with the command in each slot */
+	private final long[] mStamps;
+	/** Used to wrap a sequence number into a slot index */
+	private final int mMask;
+	/** Policy used when the queue is full */
+	private final DropPolicy mPolicy;
+
+	/** Sequence number of the next slot to write, only changed by the producer */
+	private final AtomicLong mHead = new AtomicLong();
+	/** Sequence number of the next slot to read */
+	private final AtomicLong mTail = new AtomicLong();
+
+	//Counters
+	/** Number of commands accepted into the queue */
+	private final AtomicLong mEnqueued = new AtomicLong();
+	/** Number of commands thrown away because the queue was full */
+	private final AtomicLong mDropped = new AtomicLong();
+
+	/** Time stamp of the command last returned by poll, only used by the consumer */
+	private long mPolledStamp = 0;
+
+	/**
+	 * Constructor.
+	 * @param depth - Number of commands that can be waiting, rounded up to a power of two
+	 * @param policy - What to do when a command is queued and the queue is full
+	 */
+	public CommandQueue(int depth, DropPolicy policy)
+	{
+		if(depth <= 0)
+			throw new IllegalArgumentException("The queue depth must be positive.");
+		if(policy == null)
+			throw new IllegalArgumentException("The drop policy can not be null.");
+
+		int size = Integer.highestOneBit(depth);
+		if(size < depth)
+			size <<= 1;
+
+		mSlots = new byte[size][MAX_COMMAND_LENGTH];
+		mLengths = new int[size];
+		mStamps = new long[size];
+		mMask = size - 1;
+		mPolicy = policy;
+	}
+
+	/**
+	 * Queue a command.  This never blocks.
+	 * @param data - Array holding the command
+	 * @param offset - Start of the command in data
+	 * @param length - Number of bytes in the command
+	 * @return - True if the command was queued, false if it was dropped
+	 */
+	public boolean offer(byte[] data, int offset, int length)
+	{
+		return offer(data, offset, length, 0);
+	}
+
+	/**
+	 * Queue a command with a time stamp that is handed back by poll.
+	 * This never blocks.
+	 * @param data - Array holding the command
+	 * @param offset - Start of the command in data
+	 * @param length - Number of bytes in the command
+	 * @param stamp - Time stamp to keep with the command
+	 * @return - True if the command was queued, false if it was dropped
+	 */
+	public boolean offer(byte[] data, int offset, int length, long stamp)
+	{
+		if(length <= 0 || length > MAX_COMMAND_LENGTH)
+			throw new IllegalArgumentException("Command length must be between 1 and " + MAX_COMMAND_LENGTH);
+
+		long head = mHead.get();
+		long tail = mTail.get();
+		if(head - tail > mMask)
+		{
+			if(mPolicy == DropPolicy.DROP_NEWEST)
+			{
+				mDropped.incrementAndGet();
+				return false;
+			}
+
+			//Take the oldest command away from the consumer.  If this fails the
+			//consumer has just taken it, either way there is now room.
+			if(mTail.compareAndSet(tail, tail + 1))
+				mDropped.incrementAndGet();
+		}
+
+		int index = (int) head & mMask;
+		System.arraycopy(data, offset, mSlots[index], 0, length);
+		mLengths[index] = length;
+		mStamps[index] = stamp;
+		mHead.lazySet(head + 1);
+		mEnqueued.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Take the oldest command off the queue.
+	 * @param dest - Array that receives the command, at least MAX_COMMAND_LENGTH long
+	 * @return - The length of the command, or -1 if the queue is empty
+	 */
+	public int poll(byte[] dest)
+	{
+		while(true)
+		{
+			long tail = mTail.get();
+			if(tail == mHead.get())
+				return -1;
+
+			int index = (int) tail & mMask;
+			int length = mLengths[index];
+			long stamp = mStamps[index];
+			System.arraycopy(mSlots[index], 0, dest, 0, length);
+
+			//If the producer dropped this slot while we copied it, try again
+			if(mTail.compareAndSet(tail, tail + 1))
+			{
+				mPolledStamp = stamp;
+				return length;
+			}
+		}
+	}
+
+	/**
+	 * @return - The time stamp of the command last returned by poll, only valid on the consumer
+	 */
+	public long getPolledStamp()
+	{
+		return mPolledStamp;
+	}
+
+	/**
+	 * Throw away every queued command.  Only call this from the consumer
+	 * or while the consumer is stopped.
+	 */
+	public void clear()
+	{
+		mTail.set(mHead.get());
+	}
+
+	/**
+	 * @return - True if no commands are waiting
+	 */
+	public boolean isEmpty()
+	{
+		return mTail.get() == mHead.get();
+	}
+
+	/**
+	 * @return - Number of commands waiting to be written
+	 */
+	public int size()
+	{
+		return (int) (mHead.get() - mTail.get());
+	}
+
+	/**
+	 * @return - Number of slots in the queue
+	 */
+	public int capacity()
+	{
+		return mMask + 1;
+	}
+
+	/**
+	 * @return - The policy used when the queue is full
+	 */
+	public DropPolicy getDropPolicy()
+	{
+		return mPolicy;
+	}
+
+	/**
+	 * @return - Number of commands accepted into the queue
+	 */
+	public long getEnqueuedCount()
+	{
+		return mEnqueued.get();
+	}
+
+	/**
+	 * @return - Number of commands dropped because the queue was full
+	 */
+	public long getDroppedCount()
+	{
+		return mDropped.get();
+	}
+}
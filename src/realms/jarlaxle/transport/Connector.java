@@ -0,0 +1,178 @@
+package realms.jarlaxle.transport;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+
+/** Connects a transport on an IoLoop, waiting longer after each failed
+ * attempt as set by a Backoff.  Each attempt is a task on the loop and the
+ * wait before the next one is a timer, so no thread is kept asleep.  It
+ * runs until a connection succeeds, the attempt limit is reached or it is
+ * cancelled.
+ */
+public class Connector {
+
+	/** Told how the connection attempts ended */
+	public interface Callback
+	{
+		/**
+		 * Called on the loop once the transport is connected.
+		 * @param connector - The connector that made the connection
+		 * @param transport - The connected transport
+		 */
+		public void onConnected(Connector connector, Transport transport);
+		
+		/**
+		 * Called on the loop when the attempt limit is reached.
+		 * Not called when the connector is cancelled.
+		 * @param connector - The connector that gave up
+		 * @param transport - The transport that could not be connected
+		 */
+		public void onConnectFailed(Connector connector, Transport transport);
+	}
+	
+	/** Try forever */
+	public static final int UNLIMITED_ATTEMPTS = 0;
+	
+	private final Transport mTransport;
+	private final Backoff mBackoff;
+	private final int mMaxAttempts;
+	private final IoLoop mLoop;
+	private final Callback mCallback;
+	
+	private volatile boolean isRunning = true;
+	/** The next attempt while waiting for it, null otherwise */
+	private volatile ScheduledFuture<?> mRetry = null;
+	/** System.nanoTime() when start() was called */
+	private long mStart;
+	
+	/** One attempt, posted to the loop */
+	private final Runnable mAttempt = new Runnable()
+	{
+		public void run()
+		{
+			attempt();
+		}
+	};
+	
+	//Metrics
+	/** Number of attempts made so far */
+	private volatile int mAttempts = 0;
+	/** Milliseconds from start until connected, or until now while trying */
+	private volatile long mElapsed = 0;
+	
+	/**
+	 * Constructor.
+	 * @param transport - The transport to connect
+	 * @param backoff - Sets the wait between attempts
+	 * @param maxAttempts - Attempts before giving up, or UNLIMITED_ATTEMPTS
+	 * @param loop - The loop the attempts and callbacks run on
+	 * @param callback - Told when the transport connects or the attempts run out
+	 */
+	public Connector(Transport transport, Backoff backoff, int maxAttempts, IoLoop loop, Callback callback)
+	{
+		if(transport == null)
+			throw new IllegalArgumentException("The transport can not be null.");
+		if(backoff == null)
+			throw new IllegalArgumentException("The backoff can not be null.");
+		if(loop == null)
+			throw new IllegalArgumentException("The loop can not be null.");
+		if(callback == null)
+			throw new IllegalArgumentException("The callback can not be null.");
+		
+		mTransport = transport;
+		mBackoff = backoff;
+		mMaxAttempts = maxAttempts;
+		mLoop = loop;
+		mCallback = callback;
+	}
+	
+	/**
+	 * Post the first attempt to the loop.
+	 */
+	public void start()
+	{
+		mStart = System.nanoTime();
+		mBackoff.reset();
+		mLoop.post(mAttempt);
+	}
+	
+	/**
+	 * Try to connect once, then either report the result or set a timer
+	 * for the next attempt.  Runs on the loop.
+	 */
+	private void attempt()
+	{
+		mRetry = null;
+		if(!isRunning)
+			return;
+		
+		mAttempts++;
+		try
+		{
+			// This is a blocking call and will only return on a
+			// successful connection or an exception
+			mTransport.connect();
+			mElapsed = (System.nanoTime() - mStart) / 1000000;
+			if(isRunning)
+				mCallback.onConnected(this, mTransport);
+			else
+			{
+				//Cancelled while connecting, nobody will close it otherwise
+				mTransport.close();
+			}
+			return;
+		}
+		catch(IOException e)
+		{
+			//The transport makes a fresh connection on the next attempt
+		}
+		
+		mElapsed = (System.nanoTime() - mStart) / 1000000;
+		if(mMaxAttempts != UNLIMITED_ATTEMPTS && mAttempts >= mMaxAttempts)
+		{
+			if(isRunning)
+				mCallback.onConnectFailed(this, mTransport);
+			return;
+		}
+		
+		if(isRunning)
+			mRetry = mLoop.postDelayed(mAttempt, mBackoff.nextDelay());
+	}
+	
+	/**
+	 * Stop trying and close the transport.  Closing the transport ends an
+	 * attempt that is in progress, and a waiting attempt is dropped.
+	 */
+	public void cancel()
+	{
+		isRunning = false;
+		ScheduledFuture<?> retry = mRetry;
+		if(retry != null)
+			retry.cancel(false);
+		mTransport.close();
+	}
+	
+	/**
+	 * @return - Number of connection attempts made so far
+	 */
+	public int getAttempts()
+	{
+		return mAttempts;
+	}
+	
+	/**
+	 * @return - Milliseconds spent connecting, up to the last attempt
+	 */
+	public long getElapsedMillis()
+	{
+		return mElapsed;
+	}
+	
+	/**
+	 * @return - The transport being connected
+	 */
+	public Transport getTransport()
+	{
+		return mTransport;
+	}
+}
@@ -0,0 +1,141 @@
+package realms.jarlaxle.transport;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/** One long-lived thread that runs a connection's work: connection
+ * attempts, retries after a backoff, writes and heartbeat pings.  Work is
+ * posted to it as tasks and waits are timers, so nothing sleeps in a loop
+ * and a connection that is remade reuses the same thread.  Only the
+ * blocking read needs a thread of its own, see Link.
+ * <p>
+ * Like Link this class does not depend on Android.  Tasks posted after
+ * shutdown are dropped.
+ */
+public class IoLoop {
+	
+	private final ScheduledExecutorService mExecutor;
+	/** The loop's thread, set once it starts */
+	private volatile Thread mThread = null;
+	
+	/**
+	 * Constructor.  The thread starts with the first task.
+	 * @param name - Name of the thread
+	 */
+	public IoLoop(final String name)
+	{
+		if(name == null)
+			throw new IllegalArgumentException("The name can not be null.");
+		
+		mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, name);
+				//Never keeps the process alive, shutdown() is how it is stopped
+				thread.setDaemon(true);
+				mThread = thread;
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Run a task on the loop as soon as it is free.
+	 * @param task - The task to run
+	 * @return - False if the loop is shut down and the task was dropped
+	 */
+	public boolean post(Runnable task)
+	{
+		try
+		{
+			mExecutor.execute(task);
+			return true;
+		}
+		catch(RejectedExecutionException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * Run a task on the loop after a delay.
+	 * @param task - The task to run
+	 * @param delayMillis - Milliseconds to wait first
+	 * @return - Cancels the task, or null if the loop is shut down and the task was dropped
+	 */
+	public ScheduledFuture<?> postDelayed(Runnable task, long delayMillis)
+	{
+		try
+		{
+			return mExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+		}
+		catch(RejectedExecutionException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Run a task on the loop now and then every period, measured from
+	 * the start of the first run so it does not drift.
+	 * @param task - The task to run
+	 * @param periodMillis - Milliseconds between runs
+	 * @return - Cancels the task, or null if the loop is shut down and the task was dropped
+	 */
+	public ScheduledFuture<?> postAtFixedRate(Runnable task, long periodMillis)
+	{
+		try
+		{
+			return mExecutor.scheduleAtFixedRate(task, 0, periodMillis, TimeUnit.MILLISECONDS);
+		}
+		catch(RejectedExecutionException e)
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * @return - True if called from the loop's thread
+	 */
+	public boolean isLoopThread()
+	{
+		return Thread.currentThread() == mThread;
+	}
+	
+	/**
+	 * Stop the loop.  Delayed tasks are dropped, a task that is running is
+	 * left to finish.  Cancel anything blocking on the loop first, for
+	 * example by closing the transport, or the wait can time out.
+	 * @param timeoutMillis - Milliseconds to wait for the thread to end, 0 to not wait
+	 * @return - True if the thread has ended
+	 */
+	public boolean shutdown(long timeoutMillis)
+	{
+		mExecutor.shutdownNow();
+		//The loop can not wait for itself
+		if(timeoutMillis <= 0 || isLoopThread())
+			return mExecutor.isTerminated();
+		try
+		{
+			return mExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return mExecutor.isTerminated();
+		}
+	}
+	
+	/**
+	 * @return - True once shutdown() has been called
+	 */
+	public boolean isShutdown()
+	{
+		return mExecutor.isShutdown();
+	}
+}
@@ -0,0 +1,450 @@
+package realms.jarlaxle.transport;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import realms.jarlaxle.metrics.LatencyTracker;
+import realms.jarlaxle.recorder.FlightRecorder;
+
+/** Runs an open transport.  Writes drain a CommandQueue into the
+ * transport as tasks on an IoLoop so callers never block, and a reader
+ * thread watches for incoming bytes and for the connection dropping.  The
+ * reader is the only thread a link owns, reads block until bytes arrive.
+ * This class does not depend on Android so the whole send path can be run
+ * on any JVM.
+ */
+public class Link {
+
+	/** Told when a link stops because the transport failed */
+	public interface Callback
+	{
+		/**
+		 * Called once, on the reader thread, the loop or a writing thread,
+		 * when the transport fails.
+		 * Not called when the link is cancelled.
+		 * @param link - The link that was lost
+		 */
+		public void onLinkLost(Link link);
+	}
+	
+	/** Given the bytes read from the transport */
+	public interface Receiver
+	{
+		/**
+		 * Called on the reader thread with bytes read from the transport.
+		 * The buffer is reused after this returns.
+		 * @param buffer - Array holding the bytes
+		 * @param offset - Start of the bytes in buffer
+		 * @param length - Number of bytes read
+		 */
+		public void onReceive(byte[] buffer, int offset, int length);
+	}
+	
+	/** Size of the buffer used for reading */
+	public static final int READ_BUFFER_SIZE = 1024;
+	
+	/** The open transport */
+	private final Transport mTransport;
+	/** Commands waiting to be written */
+	private final CommandQueue mQueue;
+	/** Told when the transport fails, may be null */
+	private final Callback mCallback;
+	/** Given the bytes that are read, may be null */
+	private volatile Receiver mReceiver = null;
+	/** Told when each command reaches the transport, may be null */
+	private volatile LatencyTracker mLatency = null;
+	/** Records every write and read, may be null */
+	private volatile FlightRecorder mRecorder = null;
+	
+	/** Loop the writes run on */
+	private final IoLoop mLoop;
+	/** True if the loop was made for this link and is shut down with it */
+	private final boolean isOwnLoop;
+	/** Drains the queue, posted to the loop */
+	private final Runnable mDrain = new Drain();
+	private final ReaderThread mReaderThread;
+	
+	/** Set once the link has stopped, for any reason */
+	private final AtomicBoolean isStopped = new AtomicBoolean(false);
+	/** Set while a drain is posted and has not yet started taking commands */
+	private final AtomicBoolean isDrainPosted = new AtomicBoolean(false);
+	/** Longest a write may block before the link is lost, 0 for no limit */
+	private volatile long mWriteTimeoutNanos = 0;
+	/** System.nanoTime() when the write in progress started, 0 if none is */
+	private volatile long mWriteStarted = 0;
+	/** Number of queued commands that have been written to the transport, writeOnLoop() is not counted */
+	private final AtomicLong mWrittenCount = new AtomicLong();
+	/** Total time spent blocked writing queued commands, in nanoseconds */
+	private final AtomicLong mWriteNanos = new AtomicLong();
+	
+	/**
+	 * Constructor.  The transport must already be connected.  The link
+	 * makes its own loop for writing and shuts it down when it stops.
+	 * @param transport - The open transport
+	 * @param queue - Queue that write() fills and the loop drains
+	 * @param callback - Told if the transport fails, may be null
+	 */
+	public Link(Transport transport, CommandQueue queue, Callback callback)
+	{
+		this(transport, queue, callback, null);
+	}
+	
+	/**
+	 * Constructor.  The transport must already be connected.
+	 * @param transport - The open transport
+	 * @param queue - Queue that write() fills and the loop drains
+	 * @param callback - Told if the transport fails, may be null
+	 * @param loop - Loop to write on, shared with other work and left running when the link stops, null to make one
+	 */
+	public Link(Transport transport, CommandQueue queue, Callback callback, IoLoop loop)
+	{
+		if(transport == null)
+			throw new IllegalArgumentException("The transport can not be null.");
+		if(queue == null)
+			throw new IllegalArgumentException("The queue can not be null.");
+		
+		mTransport = transport;
+		mQueue = queue;
+		mCallback = callback;
+		isOwnLoop = loop == null;
+		mLoop = isOwnLoop ? new IoLoop("Link-writer") : loop;
+		mReaderThread = new ReaderThread();
+	}
+	
+	/**
+	 * Set where bytes read from the transport go.  Without a receiver
+	 * they are thrown away.
+	 * @param receiver - Given the bytes that are read, may be null
+	 */
+	public void setReceiver(Receiver receiver)
+	{
+		mReceiver = receiver;
+	}
+	
+	/**
+	 * Set the tracker told when each command has been written.
+	 * @param tracker - The tracker, may be null
+	 */
+	public void setLatencyTracker(LatencyTracker tracker)
+	{
+		mLatency = tracker;
+	}
+	
+	/**
+	 * Set the recorder given every command written and every byte read.
+	 * @param recorder - The recorder, may be null
+	 */
+	public void setFlightRecorder(FlightRecorder recorder)
+	{
+		mRecorder = recorder;
+	}
+	
+	/**
+	 * Set how long a write may block before the link is lost.  A write
+	 * that never returns holds up everything else on the loop, heartbeat
+	 * pings included, so this is checked by write() from the caller's
+	 * thread.  Losing the link closes the transport, which ends the write.
+	 * @param timeoutMillis - Milliseconds, 0 for no limit
+	 */
+	public void setWriteTimeout(long timeoutMillis)
+	{
+		if(timeoutMillis < 0)
+			throw new IllegalArgumentException("The timeout can not be negative.");
+		mWriteTimeoutNanos = timeoutMillis * 1000000L;
+	}
+	
+	/**
+	 * Start the reader thread, and drain anything already queued.
+	 */
+	public void start()
+	{
+		mReaderThread.start();
+		scheduleDrain();
+	}
+	
+	/**
+	 * Queue bytes to be written.  This never blocks.  The queue has a
+	 * single producer, so every call must come from the same thread, work
+	 * on the loop uses writeOnLoop() instead.
+	 * @param buffer - Array holding the bytes to write
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes to write, at most CommandQueue.MAX_COMMAND_LENGTH
+	 * @return - True if the bytes were queued, false if they were dropped
+	 */
+	public boolean write(byte[] buffer, int offset, int length)
+	{
+		return write(buffer, offset, length, 0);
+	}
+	
+	/**
+	 * Queue bytes to be written, with the time of the touch that caused them.
+	 * This never blocks.  Every call must come from the thread that calls write().
+	 * @param buffer - Array holding the bytes to write
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes to write, at most CommandQueue.MAX_COMMAND_LENGTH
+	 * @param touchNanos - System.nanoTime() of the touch, 0 if unknown
+	 * @return - True if the bytes were queued, false if they were dropped
+	 */
+	public boolean write(byte[] buffer, int offset, int length, long touchNanos)
+	{
+		if(isStopped.get())
+			return false;
+		
+		long timeout = mWriteTimeoutNanos;
+		long started = mWriteStarted;
+		if(timeout > 0 && started != 0 && System.nanoTime() - started > timeout)
+		{
+			lost();
+			return false;
+		}
+		
+		boolean queued = mQueue.offer(buffer, offset, length, touchNanos);
+		scheduleDrain();
+		return queued;
+	}
+	
+	/**
+	 * Write bytes straight to the transport from the loop, ahead of
+	 * anything queued.  Work that runs on the loop, such as heartbeat
+	 * pings, writes this way so the queue keeps its single producer.
+	 * Blocks for as long as the transport's write does.
+	 * @param buffer - Array holding the bytes to write
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes to write
+	 * @return - True if the bytes were written, false if the link has stopped or the write failed
+	 */
+	public boolean writeOnLoop(byte[] buffer, int offset, int length)
+	{
+		if(!mLoop.isLoopThread())
+			throw new IllegalStateException("Only the link's loop can write past the queue.");
+		if(isStopped.get())
+			return false;
+		return transmit(buffer, offset, length, 0) >= 0;
+	}
+	
+	/**
+	 * Stop the reader and writes and close the transport.  The callback is
+	 * not called.
+	 */
+	public void cancel()
+	{
+		stop();
+	}
+	
+	/**
+	 * Wait for the reader thread to end, and the loop too if the link made
+	 * it.  Call after the link has stopped.
+	 * @param timeoutMillis - Milliseconds to wait for each
+	 * @return - True if they have ended
+	 */
+	public boolean awaitTermination(long timeoutMillis)
+	{
+		boolean ended = true;
+		if(isOwnLoop)
+			ended = mLoop.shutdown(timeoutMillis);
+		
+		//The reader can not wait for itself
+		if(Thread.currentThread() != mReaderThread)
+		{
+			try
+			{
+				mReaderThread.join(timeoutMillis);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		return ended && !mReaderThread.isAlive();
+	}
+	
+	/**
+	 * @return - True until the link is cancelled or the transport fails
+	 */
+	public boolean isRunning()
+	{
+		return !isStopped.get();
+	}
+	
+	/**
+	 * @return - The loop the writes run on
+	 */
+	public IoLoop getLoop()
+	{
+		return mLoop;
+	}
+	
+	/**
+	 * @return - The transport this link runs
+	 */
+	public Transport getTransport()
+	{
+		return mTransport;
+	}
+	
+	/**
+	 * @return - The queue of commands waiting to be written
+	 */
+	public CommandQueue getQueue()
+	{
+		return mQueue;
+	}
+	
+	/**
+	 * @return - Number of queued commands that have been written to the
+	 * transport, not counting writeOnLoop() such as heartbeat pings
+	 */
+	public long getWrittenCount()
+	{
+		return mWrittenCount.get();
+	}
+	
+	/**
+	 * @return - Total time spent blocked writing queued commands, in nanoseconds
+	 */
+	public long getWriteNanos()
+	{
+		return mWriteNanos.get();
+	}
+	
+	/**
+	 * Stop the link.
+	 * @return - True if this call stopped it, false if it was already stopped
+	 */
+	private boolean stop()
+	{
+		if(!isStopped.compareAndSet(false, true))
+			return false;
+		mTransport.close();
+		if(isOwnLoop)
+			mLoop.shutdown(0);
+		return true;
+	}
+	
+	/**
+	 * Post a drain to the loop unless one is already waiting to run.
+	 */
+	private void scheduleDrain()
+	{
+		if(isDrainPosted.compareAndSet(false, true) && !mLoop.post(mDrain))
+			isDrainPosted.set(false);
+	}
+	
+	/**
+	 * Write to the transport, telling the tracker and recorder.  Only
+	 * called on the loop, so writes never interleave.
+	 * @param stamp - Stamp of the touch behind the bytes, 0 if none
+	 * @return - Nanoseconds the write blocked for, -1 if the transport failed
+	 */
+	private long transmit(byte[] buffer, int offset, int length, long stamp)
+	{
+		try
+		{
+			long start = System.nanoTime();
+			mWriteStarted = start;
+			mTransport.write(buffer, offset, length);
+			mWriteStarted = 0;
+			long elapsed = System.nanoTime() - start;
+			
+			LatencyTracker latency = mLatency;
+			if(latency != null)
+				latency.record(LatencyTracker.STAGE_WRITE, stamp);
+			
+			FlightRecorder recorder = mRecorder;
+			if(recorder != null)
+				recorder.record(FlightRecorder.DIRECTION_OUT, buffer, offset, length);
+			return elapsed;
+		}
+		catch(IOException e)
+		{
+			mWriteStarted = 0;
+			lost();
+			return -1;
+		}
+	}
+	
+	/**
+	 * The transport failed, stop and tell the callback.
+	 */
+	private void lost()
+	{
+		if(stop() && mCallback != null)
+			mCallback.onLinkLost(this);
+	}
+	
+	/**
+	 * Drains the queue into the transport, then returns the loop to other
+	 * work.  write() posts it when commands are queued.
+	 */
+	private class Drain implements Runnable
+	{
+		private final byte[] mBuffer = new byte[CommandQueue.MAX_COMMAND_LENGTH];
+		
+		public void run()
+		{
+			//Cleared before polling so a command queued from here on posts another drain
+			isDrainPosted.set(false);
+			while(!isStopped.get())
+			{
+				int length = mQueue.poll(mBuffer);
+				if(length < 0)
+					return;
+				
+				//Only queued commands are counted, so the rate controller sees drive traffic alone
+				long elapsed = transmit(mBuffer, 0, length, mQueue.getPolledStamp());
+				if(elapsed >= 0)
+				{
+					mWriteNanos.addAndGet(elapsed);
+					mWrittenCount.incrementAndGet();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This thread reads from the transport until it closes or fails,
+	 * then it exits.
+	 */
+	private class ReaderThread extends Thread
+	{
+		private final byte[] mBuffer = new byte[READ_BUFFER_SIZE];
+		
+		public ReaderThread()
+		{
+			super("Link-reader");
+		}
+		
+		public void run()
+		{
+			while(!isStopped.get())
+			{
+				try
+				{
+					int bytes = mTransport.read(mBuffer, 0, mBuffer.length);
+					if(bytes < 0)
+					{
+						lost();
+						return;
+					}
+					
+					if(bytes == 0)
+						continue;
+					
+					FlightRecorder recorder = mRecorder;
+					if(recorder != null)
+						recorder.record(FlightRecorder.DIRECTION_IN, mBuffer, 0, bytes);
+					
+					Receiver receiver = mReceiver;
+					if(receiver != null)
+						receiver.onReceive(mBuffer, 0, bytes);
+				}
+				catch(IOException e)
+				{
+					lost();
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,550 @@
+package realms.jarlaxle.transport;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import realms.jarlaxle.metrics.LatencyTracker;
+
+/** Runs connections to several robots at once, keyed by address.  Every
+ * robot gets its own IoLoop, Connector, CommandQueue and Link, so each one
+ * connects, reconnects and writes on its own loop and a slow or lost
+ * robot never holds up the others.  A robot keeps its loop for as long as
+ * it is added, reconnecting does not make new threads.
+ * <p>
+ * Writing takes no lock: an addressed write is one map lookup, and a
+ * write to every robot walks an array that is only replaced when a robot
+ * is added or removed.  Each robot's queue has a single producer, so
+ * every write() and writeAll() call must come from the same thread, as
+ * with Link.write().  Like Link this class does not depend on Android.
+ */
+public class LinkManager {
+	
+	/** Told how the connection to each robot changes.  Every method is
+	 * called on that robot's loop or link reader thread. */
+	public interface Listener
+	{
+		/**
+		 * The robot is connected and commands can be written to it.
+		 * @param address - Address of the robot
+		 */
+		public void onConnected(String address);
+		
+		/**
+		 * The connection was lost and is being remade.
+		 * @param address - Address of the robot
+		 */
+		public void onReconnecting(String address);
+		
+		/**
+		 * The connection was lost and auto reconnect is off.  The robot
+		 * stays added and can be connected again with connect().
+		 * @param address - Address of the robot
+		 */
+		public void onLost(String address);
+		
+		/**
+		 * The connection attempts ran out.
+		 * @param address - Address of the robot
+		 */
+		public void onConnectFailed(String address);
+	}
+	
+	/** Robots by address, for addressed writes */
+	private final ConcurrentHashMap<String, Robot> mRobots = new ConcurrentHashMap<String, Robot>();
+	/** Every robot, never changed once published so writes can walk it without locks */
+	private volatile Robot[] mRobotArray = new Robot[0];
+	/** Lock held while robots are added or removed */
+	private final Object mRobotsLock = new Object();
+	
+	/** Told how the connections change, may be null */
+	private final Listener mListener;
+	/** Told when commands reach each transport, may be null */
+	private volatile LatencyTracker mLatency = null;
+	/** Reconnect automatically when a connection is lost */
+	private volatile boolean doAutoReconnect = true;
+	
+	/** Milliseconds removing a robot waits for its threads to end */
+	private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+	
+	//Settings for robots added after they are set
+	private int mQueueDepth = CommandQueue.DEFAULT_DEPTH;
+	private CommandQueue.DropPolicy mDropPolicy = CommandQueue.DropPolicy.DROP_OLDEST;
+	private int mMaxConnectAttempts = Connector.UNLIMITED_ATTEMPTS;
+	
+	/**
+	 * Constructor.
+	 * @param listener - Told how the connections change, may be null
+	 */
+	public LinkManager(Listener listener)
+	{
+		mListener = listener;
+	}
+	
+	//----------------------------------Configuration--------------------------------------
+	
+	/**
+	 * Set up the queue used for robots added after this call.
+	 * @param depth - Number of commands that can wait to be written
+	 * @param policy - What to do with a command when the queue is full
+	 */
+	public synchronized void setWriteQueue(int depth, CommandQueue.DropPolicy policy)
+	{
+		if(policy == null)
+			throw new IllegalArgumentException("The drop policy can not be null.");
+		mQueueDepth = depth;
+		mDropPolicy = policy;
+	}
+	
+	/**
+	 * Set how many attempts are made for robots added after this call.
+	 * @param maxAttempts - Attempts before giving up, or Connector.UNLIMITED_ATTEMPTS
+	 */
+	public synchronized void setMaxConnectAttempts(int maxAttempts)
+	{
+		mMaxConnectAttempts = maxAttempts;
+	}
+	
+	/**
+	 * Set whether lost connections are remade automatically.
+	 * @param reconnect - True to reconnect, false to report the loss and stop
+	 */
+	public void setAutoReconnect(boolean reconnect)
+	{
+		doAutoReconnect = reconnect;
+	}
+	
+	/**
+	 * Set the tracker told when commands are written, for every robot.
+	 * @param tracker - The tracker, may be null
+	 */
+	public void setLatencyTracker(LatencyTracker tracker)
+	{
+		mLatency = tracker;
+		Robot[] robots = mRobotArray;
+		for(int i = 0; i < robots.length; i++)
+		{
+			Link link = robots[i].mLink;
+			if(link != null)
+				link.setLatencyTracker(tracker);
+		}
+	}
+	
+	//-------------------------------------------------------------------------------------
+	
+	//----------------------------------Robots---------------------------------------------
+	
+	/**
+	 * Add a robot and start connecting to it, with the default backoff.
+	 * @param address - Key for the robot, normally its MAC address
+	 * @param transport - Transport that reaches the robot
+	 * @return - True if added, false if a robot with that address is already added
+	 */
+	public boolean add(String address, Transport transport)
+	{
+		return add(address, transport, new Backoff());
+	}
+	
+	/**
+	 * Add a robot and start connecting to it.
+	 * @param address - Key for the robot, normally its MAC address
+	 * @param transport - Transport that reaches the robot
+	 * @param backoff - Spaces out the attempts, used only by this robot
+	 * @return - True if added, false if a robot with that address is already added
+	 */
+	public boolean add(String address, Transport transport, Backoff backoff)
+	{
+		if(address == null)
+			throw new IllegalArgumentException("The address can not be null.");
+		if(transport == null)
+			throw new IllegalArgumentException("The transport can not be null.");
+		if(backoff == null)
+			throw new IllegalArgumentException("The backoff can not be null.");
+		
+		Robot robot;
+		synchronized (this) {
+			robot = new Robot(address, transport, backoff,
+					new CommandQueue(mQueueDepth, mDropPolicy), mMaxConnectAttempts);
+		}
+		
+		synchronized (mRobotsLock) {
+			if(mRobots.putIfAbsent(address, robot) != null)
+				return false;
+			
+			Robot[] current = mRobotArray;
+			Robot[] updated = new Robot[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = robot;
+			mRobotArray = updated;
+		}
+		
+		robot.connect();
+		return true;
+	}
+	
+	/**
+	 * Disconnect a robot and forget it.
+	 * @param address - Address the robot was added with
+	 * @return - True if the robot was removed, false if it was not added
+	 */
+	public boolean remove(String address)
+	{
+		Robot robot;
+		synchronized (mRobotsLock) {
+			robot = mRobots.remove(address);
+			if(robot == null)
+				return false;
+			
+			Robot[] current = mRobotArray;
+			Robot[] updated = new Robot[current.length - 1];
+			for(int i = 0, j = 0; i < current.length; i++)
+				if(current[i] != robot)
+					updated[j++] = current[i];
+			mRobotArray = updated;
+		}
+		
+		robot.close();
+		return true;
+	}
+	
+	/**
+	 * Connect a robot again after its attempts ran out or it was lost.
+	 * Any connection it has is dropped first.
+	 * @param address - Address the robot was added with
+	 * @return - False if the robot was not added
+	 */
+	public boolean connect(String address)
+	{
+		Robot robot = mRobots.get(address);
+		if(robot == null)
+			return false;
+		robot.connect();
+		return true;
+	}
+	
+	/**
+	 * Disconnect and forget every robot.
+	 */
+	public void cancel()
+	{
+		Robot[] robots;
+		synchronized (mRobotsLock) {
+			robots = mRobotArray;
+			mRobotArray = new Robot[0];
+			mRobots.clear();
+		}
+		
+		for(int i = 0; i < robots.length; i++)
+			robots[i].close();
+	}
+	
+	//-------------------------------------------------------------------------------------
+	
+	//----------------------------------Writing--------------------------------------------
+	
+	/**
+	 * Queue bytes for one robot.  This never blocks.  Must be called from
+	 * the same thread as every other write() and writeAll().
+	 * @param address - Address of the robot
+	 * @param buffer - Array holding the bytes to write
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes to write, at most CommandQueue.MAX_COMMAND_LENGTH
+	 * @return - True if the bytes were queued, false if they were dropped or the robot is not connected
+	 */
+	public boolean write(String address, byte[] buffer, int offset, int length)
+	{
+		return write(address, buffer, offset, length, 0);
+	}
+	
+	/**
+	 * Queue bytes for one robot, with the time of the touch that caused them.
+	 * Must be called from the same thread as every other write() and writeAll().
+	 * @param address - Address of the robot
+	 * @param buffer - Array holding the bytes to write
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes to write, at most CommandQueue.MAX_COMMAND_LENGTH
+	 * @param touchNanos - System.nanoTime() of the touch, 0 if unknown
+	 * @return - True if the bytes were queued, false if they were dropped or the robot is not connected
+	 */
+	public boolean write(String address, byte[] buffer, int offset, int length, long touchNanos)
+	{
+		Robot robot = mRobots.get(address);
+		if(robot == null)
+			return false;
+		Link link = robot.mLink;
+		return link != null && link.write(buffer, offset, length, touchNanos);
+	}
+	
+	/**
+	 * Queue the same bytes for every connected robot.  This never blocks,
+	 * each robot's loop copies them to its own transport.  Must be called
+	 * from the same thread as every other write() and writeAll().
+	 * @param buffer - Array holding the bytes to write
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes to write, at most CommandQueue.MAX_COMMAND_LENGTH
+	 * @return - Number of robots the bytes were queued for
+	 */
+	public int writeAll(byte[] buffer, int offset, int length)
+	{
+		return writeAll(buffer, offset, length, 0);
+	}
+	
+	/**
+	 * Queue the same bytes for every connected robot, with the time of the
+	 * touch that caused them.  Must be called from the same thread as every
+	 * other write() and writeAll().
+	 * @param buffer - Array holding the bytes to write
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes to write, at most CommandQueue.MAX_COMMAND_LENGTH
+	 * @param touchNanos - System.nanoTime() of the touch, 0 if unknown
+	 * @return - Number of robots the bytes were queued for
+	 */
+	public int writeAll(byte[] buffer, int offset, int length, long touchNanos)
+	{
+		int queued = 0;
+		Robot[] robots = mRobotArray;
+		for(int i = 0; i < robots.length; i++)
+		{
+			Link link = robots[i].mLink;
+			if(link != null && link.write(buffer, offset, length, touchNanos))
+				queued++;
+		}
+		return queued;
+	}
+	
+	//-------------------------------------------------------------------------------------
+	
+	//----------------------------------State----------------------------------------------
+	
+	/**
+	 * Set where the bytes read from one robot go.
+	 * @param address - Address of the robot
+	 * @param receiver - Given the bytes that are read, may be null
+	 * @return - False if the robot was not added
+	 */
+	public boolean setReceiver(String address, Link.Receiver receiver)
+	{
+		Robot robot = mRobots.get(address);
+		if(robot == null)
+			return false;
+		robot.mReceiver = receiver;
+		Link link = robot.mLink;
+		if(link != null)
+			link.setReceiver(receiver);
+		return true;
+	}
+	
+	/**
+	 * @param address - Address of the robot
+	 * @return - True if the robot is added and connected
+	 */
+	public boolean isConnected(String address)
+	{
+		Robot robot = mRobots.get(address);
+		return robot != null && robot.mLink != null;
+	}
+	
+	/**
+	 * @param address - Address of the robot
+	 * @return - The link running the robot's connection, or null if it is not connected
+	 */
+	public Link getLink(String address)
+	{
+		Robot robot = mRobots.get(address);
+		return robot == null ? null : robot.mLink;
+	}
+	
+	/**
+	 * @param address - Address of the robot
+	 * @return - Number of times the robot's lost connection has been remade, 0 if it is not added
+	 */
+	public int getReconnectCount(String address)
+	{
+		Robot robot = mRobots.get(address);
+		return robot == null ? 0 : robot.mReconnectCount;
+	}
+	
+	/**
+	 * @return - Addresses of every added robot
+	 */
+	public String[] getAddresses()
+	{
+		Robot[] robots = mRobotArray;
+		String[] addresses = new String[robots.length];
+		for(int i = 0; i < robots.length; i++)
+			addresses[i] = robots[i].mAddress;
+		return addresses;
+	}
+	
+	/**
+	 * @return - Number of added robots
+	 */
+	public int size()
+	{
+		return mRobotArray.length;
+	}
+	
+	/**
+	 * @return - Number of robots that are connected right now
+	 */
+	public int getConnectedCount()
+	{
+		int count = 0;
+		Robot[] robots = mRobotArray;
+		for(int i = 0; i < robots.length; i++)
+			if(robots[i].mLink != null)
+				count++;
+		return count;
+	}
+	
+	//-------------------------------------------------------------------------------------
+	
+	/**
+	 * One robot's connection.  Its methods lock only this robot, so
+	 * connecting or losing one robot never waits on another.
+	 */
+	private class Robot implements Connector.Callback, Link.Callback
+	{
+		private final String mAddress;
+		private final Transport mTransport;
+		private final Backoff mBackoff;
+		private final CommandQueue mQueue;
+		private final int mMaxAttempts;
+		/** Runs this robot's connection attempts and writes */
+		private final IoLoop mLoop;
+		
+		/** Makes the connection on the loop, null once connected */
+		private Connector mConnector = null;
+		/** Link running the connection, null while not connected */
+		private volatile Link mLink = null;
+		/** Given the bytes read from this robot, may be null */
+		private volatile Link.Receiver mReceiver = null;
+		/** Set once the robot is removed */
+		private boolean isClosed = false;
+		/** Number of times a lost connection has been remade */
+		private volatile int mReconnectCount = 0;
+		
+		public Robot(String address, Transport transport, Backoff backoff, CommandQueue queue, int maxAttempts)
+		{
+			mAddress = address;
+			mTransport = transport;
+			mBackoff = backoff;
+			mQueue = queue;
+			mMaxAttempts = maxAttempts;
+			mLoop = new IoLoop("Robot-" + address);
+		}
+		
+		/**
+		 * Drop any connection and start connecting again.
+		 */
+		public synchronized void connect()
+		{
+			if(isClosed)
+				return;
+			stop();
+			startConnector();
+		}
+		
+		/**
+		 * Drop the connection for good and stop the loop.
+		 */
+		public void close()
+		{
+			Link link;
+			synchronized (this) {
+				isClosed = true;
+				link = mLink;
+				stop();
+			}
+			
+			//Wait outside the lock, the loop may be waiting for it in a callback
+			mLoop.shutdown(CLOSE_TIMEOUT_MILLIS);
+			if(link != null)
+				link.awaitTermination(CLOSE_TIMEOUT_MILLIS);
+		}
+		
+		public void onConnected(Connector connector, Transport transport)
+		{
+			synchronized (this) {
+				//Ignore a connector that was cancelled while it connected
+				if(connector != mConnector)
+				{
+					transport.close();
+					return;
+				}
+				mConnector = null;
+				
+				//Old commands are stale
+				mQueue.clear();
+				Link link = new Link(transport, mQueue, this, mLoop);
+				link.setReceiver(mReceiver);
+				link.setLatencyTracker(mLatency);
+				link.start();
+				mLink = link;
+			}
+			
+			if(mListener != null)
+				mListener.onConnected(mAddress);
+		}
+		
+		public void onConnectFailed(Connector connector, Transport transport)
+		{
+			synchronized (this) {
+				if(connector != mConnector)
+					return;
+				mConnector = null;
+			}
+			
+			if(mListener != null)
+				mListener.onConnectFailed(mAddress);
+		}
+		
+		public void onLinkLost(Link link)
+		{
+			synchronized (this) {
+				if(link != mLink)
+					return;
+				mLink = null;
+			}
+			
+			if(!doAutoReconnect)
+			{
+				if(mListener != null)
+					mListener.onLost(mAddress);
+				return;
+			}
+			
+			//Tell the listener first so it hears about the reconnect before the connection
+			if(mListener != null)
+				mListener.onReconnecting(mAddress);
+			synchronized (this) {
+				//Removed or connected again while the listener ran
+				if(isClosed || mLink != null || mConnector != null)
+					return;
+				mReconnectCount++;
+				startConnector();
+			}
+		}
+		
+		/**
+		 * Cancel the connector and the link, if there are any.
+		 */
+		private void stop()
+		{
+			if(mConnector != null)
+			{
+				mConnector.cancel();
+				mConnector = null;
+			}
+			if(mLink != null)
+			{
+				mLink.cancel();
+				mLink = null;
+			}
+		}
+		
+		private void startConnector()
+		{
+			mConnector = new Connector(mTransport, mBackoff, mMaxAttempts, mLoop, this);
+			mConnector.start();
+		}
+	}
+}
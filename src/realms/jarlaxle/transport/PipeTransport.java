@@ -0,0 +1,210 @@
+package realms.jarlaxle.transport;
+
+import java.io.IOException;
+
+/** An in-memory transport.  Pipes are made in pairs, whatever one end
+ * writes the other end reads, so a test can play the robot on the other end.
+ * <p>
+ * Closing either end closes the pipe for both, like a socket.  Connecting
+ * after that opens a fresh pipe that both ends then use, so a Connector
+ * can retry over a pipe the same way it does over a real connection.
+ */
+public class PipeTransport implements Transport {
+	
+	/** Default number of bytes that can be waiting in each direction */
+	public static final int DEFAULT_CAPACITY = 4096;
+	
+	/** The buffers shared with the other end */
+	private final Pipe mPipe;
+	/** Which end this is, 0 or 1 */
+	private final int mEnd;
+	/** Name of this end */
+	private final String mName;
+	
+	/** Has connect been called, and close not */
+	private volatile boolean isConnected = false;
+	
+	/**
+	 * Create two connected ends of a pipe.
+	 * @param capacity - Number of bytes that can be waiting in each direction
+	 * @return - The two ends, index 0 is usually the controller and 1 the robot
+	 */
+	public static PipeTransport[] createPair(int capacity)
+	{
+		Pipe pipe = new Pipe(capacity);
+		return new PipeTransport[] {
+				new PipeTransport(pipe, 0, "pipe-0"),
+				new PipeTransport(pipe, 1, "pipe-1") };
+	}
+	
+	/**
+	 * Create two connected ends of a pipe with the default capacity.
+	 */
+	public static PipeTransport[] createPair()
+	{
+		return createPair(DEFAULT_CAPACITY);
+	}
+	
+	private PipeTransport(Pipe pipe, int end, String name)
+	{
+		mPipe = pipe;
+		mEnd = end;
+		mName = name;
+	}
+	
+	/**
+	 * Open the pipe, or a fresh one if it has been closed.
+	 */
+	public void connect() throws IOException
+	{
+		mPipe.open();
+		isConnected = true;
+	}
+	
+	public void write(byte[] buffer, int offset, int length) throws IOException
+	{
+		mPipe.get(1 - mEnd).write(buffer, offset, length);
+	}
+	
+	public int read(byte[] buffer, int offset, int length) throws IOException
+	{
+		return mPipe.get(mEnd).read(buffer, offset, length);
+	}
+	
+	/**
+	 * Closes both directions, the other end will see the pipe close too.
+	 */
+	public void close()
+	{
+		isConnected = false;
+		mPipe.close();
+	}
+	
+	public boolean isConnected()
+	{
+		return isConnected;
+	}
+	
+	public String getName()
+	{
+		return mName;
+	}
+	
+	/**
+	 * The two directions of a pipe, shared by both ends.  Reopening
+	 * replaces them, anything still blocked on the old ones sees them closed.
+	 */
+	private static class Pipe
+	{
+		private final int mCapacity;
+		/** Bytes waiting to be read by each end, by end */
+		private final Buffer[] mBuffers = new Buffer[2];
+		
+		public Pipe(int capacity)
+		{
+			mCapacity = capacity;
+			mBuffers[0] = new Buffer(capacity);
+			mBuffers[1] = new Buffer(capacity);
+		}
+		
+		/**
+		 * Make fresh buffers if the current ones are closed.
+		 */
+		public synchronized void open()
+		{
+			if(mBuffers[0].isClosed() || mBuffers[1].isClosed())
+			{
+				mBuffers[0] = new Buffer(mCapacity);
+				mBuffers[1] = new Buffer(mCapacity);
+			}
+		}
+		
+		/**
+		 * @param end - 0 or 1
+		 * @return - The buffer that end reads from
+		 */
+		public synchronized Buffer get(int end)
+		{
+			return mBuffers[end];
+		}
+		
+		public synchronized void close()
+		{
+			mBuffers[0].close();
+			mBuffers[1].close();
+		}
+	}
+	
+	/**
+	 * A bounded byte ring that blocks writers when full and readers when empty.
+	 */
+	private static class Buffer
+	{
+		private final byte[] mData;
+		private int mReadPos = 0;
+		private int mCount = 0;
+		private boolean isClosed = false;
+		
+		public Buffer(int capacity)
+		{
+			if(capacity <= 0)
+				throw new IllegalArgumentException("The capacity must be positive.");
+			mData = new byte[capacity];
+		}
+		
+		public synchronized void write(byte[] buffer, int offset, int length) throws IOException
+		{
+			while(length > 0)
+			{
+				while(mCount == mData.length && !isClosed)
+					waitUninterrupted();
+				if(isClosed)
+					throw new IOException("Pipe is closed");
+				
+				int writePos = (mReadPos + mCount) % mData.length;
+				int chunk = Math.min(length, Math.min(mData.length - mCount, mData.length - writePos));
+				System.arraycopy(buffer, offset, mData, writePos, chunk);
+				mCount += chunk;
+				offset += chunk;
+				length -= chunk;
+				notifyAll();
+			}
+		}
+		
+		public synchronized int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			while(mCount == 0 && !isClosed)
+				waitUninterrupted();
+			if(mCount == 0)
+				return -1;
+			
+			int chunk = Math.min(length, Math.min(mCount, mData.length - mReadPos));
+			System.arraycopy(mData, mReadPos, buffer, offset, chunk);
+			mReadPos = (mReadPos + chunk) % mData.length;
+			mCount -= chunk;
+			notifyAll();
+			return chunk;
+		}
+		
+		public synchronized void close()
+		{
+			isClosed = true;
+			notifyAll();
+		}
+		
+		public synchronized boolean isClosed()
+		{
+			return isClosed;
+		}
+		
+		private void waitUninterrupted()
+		{
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException e)
+			{}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package realms.jarlaxle.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/** A transport over a TCP socket.  Used to talk to a stand-in robot
+ * on the local machine, a new socket is made for every connect().
+ */
+public class TcpTransport implements Transport {
+
+	/** How long to wait for a connection, in milliseconds */
+	public static final int CONNECT_TIMEOUT = 2000;
+	
+	/** Host to connect to */
+	private final String mHost;
+	/** Port to connect to */
+	private final int mPort;
+	
+	/** The open socket, null when not connected */
+	private volatile Socket mSocket = null;
+	private volatile InputStream mInStream = null;
+	private volatile OutputStream mOutStream = null;
+	
+	/**
+	 * Constructor.
+	 * @param host - Host name or address to connect to
+	 * @param port - Port to connect to
+	 */
+	public TcpTransport(String host, int port)
+	{
+		if(host == null)
+			throw new IllegalArgumentException("The host can not be null.");
+		mHost = host;
+		mPort = port;
+	}
+	
+	public void connect() throws IOException
+	{
+		close();
+		
+		Socket socket = new Socket();
+		try
+		{
+			//Commands are small, send them straight away
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+			mInStream = socket.getInputStream();
+			mOutStream = socket.getOutputStream();
+		}
+		catch(IOException e)
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e2)
+			{  }
+			throw e;
+		}
+		mSocket = socket;
+	}
+	
+	public void write(byte[] buffer, int offset, int length) throws IOException
+	{
+		OutputStream out = mOutStream;
+		if(out == null)
+			throw new IOException("Not connected");
+		out.write(buffer, offset, length);
+	}
+	
+	public int read(byte[] buffer, int offset, int length) throws IOException
+	{
+		InputStream in = mInStream;
+		if(in == null)
+			throw new IOException("Not connected");
+		return in.read(buffer, offset, length);
+	}
+	
+	public void close()
+	{
+		Socket socket = mSocket;
+		mSocket = null;
+		if(socket != null)
+		{
+			try
+			{
+				socket.close();
+			}
+			catch(IOException e)
+			{  }
+		}
+	}
+	
+	public boolean isConnected()
+	{
+		Socket socket = mSocket;
+		return socket != null && socket.isConnected() && !socket.isClosed();
+	}
+	
+	public String getName()
+	{
+		return mHost + ":" + mPort;
+	}
+}
@@ -0,0 +1,56 @@
+package realms.jarlaxle.transport;
+
+import java.io.IOException;
+
+/** A byte stream connection to a robot.  Bluetooth is one implementation,
+ * the others let the command pipeline run without a robot in the room.
+ * <p>
+ * read() is called from one thread and write() from another, so
+ * implementations must allow both at the same time.  close() may be 
+ * called from any thread and must unblock a waiting read().
+ */
+public interface Transport {
+
+	/**
+	 * Open the connection.  This blocks until it succeeds or fails.
+	 * Each call starts a fresh connection, so it can be called again
+	 * after a failure or after close().
+	 * @throws IOException - If the connection could not be made
+	 */
+	public void connect() throws IOException;
+	
+	/**
+	 * Write bytes to the remote end.  This blocks until the bytes are handed off.
+	 * @param buffer - Array holding the bytes
+	 * @param offset - Start of the bytes in buffer
+	 * @param length - Number of bytes to write
+	 * @throws IOException - If the connection is broken
+	 */
+	public void write(byte[] buffer, int offset, int length) throws IOException;
+	
+	/**
+	 * Read bytes from the remote end.  This blocks until at least one byte
+	 * is available or the connection is closed.
+	 * @param buffer - Array to read into
+	 * @param offset - Where to start writing in buffer
+	 * @param length - Most bytes to read
+	 * @return - Number of bytes read, or -1 if the connection was closed
+	 * @throws IOException - If the connection is broken
+	 */
+	public int read(byte[] buffer, int offset, int length) throws IOException;
+	
+	/**
+	 * Close the connection.  Never throws, closing twice has no effect.
+	 */
+	public void close();
+	
+	/**
+	 * @return - True if connect() has succeeded and close() has not been called
+	 */
+	public boolean isConnected();
+	
+	/**
+	 * @return - A name for the remote end that can be shown to the user
+	 */
+	public String getName();
+}
@@ -0,0 +1,11 @@
+#!/bin/sh
+# Builds the Android-free sources with the benchmarks and runs them.
+# Usage: tools/bench.sh [--filter text] [--baseline tools/bench-baseline.txt] [--write-baseline file]
+set -e
+cd "$(dirname "$0")/.."
+OUT="${TMPDIR:-/tmp}/jarlaxle-bench"
+rm -rf "$OUT"
+mkdir -p "$OUT"
+find src tools -name '*.java' | xargs grep -L '^import android\.' > "$OUT/sources.txt"
+javac -nowarn -d "$OUT" @"$OUT/sources.txt"
+java -cp "$OUT" realms.jarlaxle.bench.ControlPathBenchmarks "$@"
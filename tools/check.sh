@@ -0,0 +1,12 @@
+#!/bin/sh
+# Builds the Android-free sources with the tools and runs the equivalence checks.
+# Exits non-zero if any check fails.
+# Usage: tools/check.sh
+set -e
+cd "$(dirname "$0")/.."
+OUT="${TMPDIR:-/tmp}/jarlaxle-check"
+rm -rf "$OUT"
+mkdir -p "$OUT"
+find src tools -name '*.java' | xargs grep -L '^import android\.' > "$OUT/sources.txt"
+javac -nowarn -d "$OUT" @"$OUT/sources.txt"
+java -cp "$OUT" realms.jarlaxle.check.MixerCheck
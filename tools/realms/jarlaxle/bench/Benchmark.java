@@ -0,0 +1,34 @@
+package realms.jarlaxle.bench;
+
+/** One operation to measure.  Subclasses do the operation count times
+ * and return a value built from the results, so the JIT can not throw
+ * the work away.
+ */
+public abstract class Benchmark {
+
+	/** Name printed in the results and used in the baseline file */
+	private final String mName;
+	
+	/**
+	 * Constructor.
+	 * @param name - Name of the benchmark, must not contain spaces
+	 */
+	protected Benchmark(String name)
+	{
+		if(name == null || name.indexOf(' ') >= 0)
+			throw new IllegalArgumentException("The name can not be null or contain spaces.");
+		mName = name;
+	}
+	
+	/**
+	 * Do the operation count times.
+	 * @param count - Number of operations
+	 * @return - Any value that depends on every operation
+	 */
+	public abstract long run(int count);
+	
+	public String getName()
+	{
+		return mName;
+	}
+}
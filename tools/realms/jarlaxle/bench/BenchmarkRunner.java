@@ -0,0 +1,199 @@
+package realms.jarlaxle.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/** Runs benchmarks and reports nanoseconds and bytes allocated per operation.
+ * Results can be written to a baseline file, and later runs can be checked
+ * against it so a regression in per-frame cost fails the build.
+ * <p>
+ * Allocation is measured with the HotSpot thread allocation counter, so
+ * bytes/op is reported as -1 on JVMs that do not have one.
+ */
+public class BenchmarkRunner {
+
+	/** Operations per measured batch */
+	public static final int BATCH = 100000;
+	/** Batches run before measuring */
+	public static final int WARMUP_BATCHES = 200;
+	/** Batches measured, the median is reported */
+	public static final int MEASURED_BATCHES = 50;
+	
+	/** How much slower than the baseline a benchmark may be before it fails */
+	public static final double DEFAULT_TIME_TOLERANCE = 1.5;
+	/** How many more bytes per operation than the baseline are allowed */
+	public static final double ALLOCATION_TOLERANCE = 0.5;
+	
+	/** The result of one benchmark */
+	public static class Result
+	{
+		public final String name;
+		public final double nanosPerOp;
+		public final double bytesPerOp;
+		
+		public Result(String name, double nanosPerOp, double bytesPerOp)
+		{
+			this.name = name;
+			this.nanosPerOp = nanosPerOp;
+			this.bytesPerOp = bytesPerOp;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.US, "%-32s %12.2f %12.2f", name, nanosPerOp, bytesPerOp);
+		}
+	}
+	
+	/** Benchmarks to run, in order */
+	private final List<Benchmark> mBenchmarks = new ArrayList<Benchmark>();
+	/** Stops the JIT from discarding the results */
+	private long mSink;
+	
+	/**
+	 * Add a benchmark to the run.
+	 */
+	public void add(Benchmark benchmark)
+	{
+		mBenchmarks.add(benchmark);
+	}
+	
+	/**
+	 * Run every benchmark and print the results.
+	 * @param filter - Only run benchmarks whose name contains this, null for all
+	 * @return - The results, in the order the benchmarks were added
+	 */
+	public List<Result> runAll(String filter)
+	{
+		List<Result> results = new ArrayList<Result>();
+		System.out.println(String.format(Locale.US, "%-32s %12s %12s", "benchmark", "ns/op", "bytes/op"));
+		for(Benchmark benchmark : mBenchmarks)
+		{
+			if(filter != null && benchmark.getName().indexOf(filter) < 0)
+				continue;
+			Result result = run(benchmark);
+			System.out.println(result);
+			results.add(result);
+		}
+		if(mSink == 42)
+			System.out.println();
+		return results;
+	}
+	
+	/**
+	 * Warm up and measure one benchmark.
+	 */
+	public Result run(Benchmark benchmark)
+	{
+		for(int i = 0; i < WARMUP_BATCHES; i++)
+			mSink ^= benchmark.run(BATCH);
+		
+		double[] nanos = new double[MEASURED_BATCHES];
+		long allocatedBefore = allocatedBytes();
+		for(int i = 0; i < MEASURED_BATCHES; i++)
+		{
+			long start = System.nanoTime();
+			mSink ^= benchmark.run(BATCH);
+			nanos[i] = (double) (System.nanoTime() - start) / BATCH;
+		}
+		long allocatedAfter = allocatedBytes();
+		
+		Arrays.sort(nanos);
+		double bytesPerOp = -1;
+		if(allocatedBefore >= 0 && allocatedAfter >= 0)
+			bytesPerOp = (double) (allocatedAfter - allocatedBefore) / ((long) BATCH * MEASURED_BATCHES);
+		return new Result(benchmark.getName(), nanos[MEASURED_BATCHES / 2], bytesPerOp);
+	}
+	
+	/**
+	 * @return - Bytes allocated so far by this thread, or -1 if the JVM can not tell
+	 */
+	private static long allocatedBytes()
+	{
+		try
+		{
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if(bean instanceof com.sun.management.ThreadMXBean)
+				return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		catch(LinkageError e)
+		{}
+		return -1;
+	}
+	
+	/**
+	 * Write results to a baseline file.
+	 */
+	public static void writeBaseline(String path, List<Result> results) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(path));
+		try
+		{
+			out.println("# benchmark ns/op bytes/op");
+			for(Result result : results)
+				out.println(String.format(Locale.US, "%s %.2f %.2f", result.name, result.nanosPerOp, result.bytesPerOp));
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	
+	/**
+	 * Compare results to a baseline file and print any regressions.
+	 * @param path - The baseline file
+	 * @param results - Results of this run
+	 * @param timeTolerance - How many times slower than the baseline is allowed
+	 * @return - Number of benchmarks that regressed
+	 */
+	public static int checkBaseline(String path, List<Result> results, double timeTolerance) throws IOException
+	{
+		Map<String, double[]> baseline = new HashMap<String, double[]>();
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		try
+		{
+			String line;
+			while((line = in.readLine()) != null)
+			{
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] parts = line.split("\\s+");
+				baseline.put(parts[0], new double[] { Double.parseDouble(parts[1]), Double.parseDouble(parts[2]) });
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		
+		int failures = 0;
+		for(Result result : results)
+		{
+			double[] expected = baseline.get(result.name);
+			if(expected == null)
+				continue;
+			if(result.nanosPerOp > expected[0] * timeTolerance)
+			{
+				System.out.println("REGRESSION " + result.name + ": " + result.nanosPerOp + " ns/op, baseline " + expected[0]);
+				failures++;
+			}
+			if(result.bytesPerOp >= 0 && expected[1] >= 0 && result.bytesPerOp > expected[1] + ALLOCATION_TOLERANCE)
+			{
+				System.out.println("REGRESSION " + result.name + ": " + result.bytesPerOp + " bytes/op, baseline " + expected[1]);
+				failures++;
+			}
+		}
+		return failures;
+	}
+}
@@ -0,0 +1,328 @@
+package realms.jarlaxle.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import realms.jarlaxle.movingcircle.CenteringSpring;
+import realms.jarlaxle.movingcircle.CircleMath;
+import realms.jarlaxle.movingcircle.CircleOffset;
+import realms.jarlaxle.movingcircle.TouchFilter;
+import realms.jarlaxle.protocol.DriveFrame;
+import realms.jarlaxle.protocol.FrameParser;
+import realms.jarlaxle.protocol.TelemetryFrame;
+import realms.jarlaxle.protocol.TelemetryListener;
+import realms.jarlaxle.recorder.FlightRecorder;
+import realms.jarlaxle.robot.DriveFilter;
+import realms.jarlaxle.robot.DriveMixer;
+import realms.jarlaxle.transport.CommandQueue;
+
+/** Benchmarks for the code that runs once per frame or once per command.
+ * <p>
+ * Run with tools/bench.sh.  Arguments:
+ * <pre>
+ * --filter text       only run benchmarks whose name contains text
+ * --write-baseline f  write the results to f
+ * --baseline f       compare the results to f, exit with 1 on a regression
+ * --tolerance x      allowed slowdown against the baseline, default 1.5
+ * </pre>
+ */
+public class ControlPathBenchmarks {
+
+	/** Radius of movement used for the joystick benchmarks */
+	public static final int RADIUS = DriveMixer.RANGE;
+	/** Number of sample points, a power of two */
+	private static final int SAMPLES = 1024;
+	
+	/** Touch points, some inside and some outside the circle */
+	private static final int[] TOUCH_X = new int[SAMPLES];
+	private static final int[] TOUCH_Y = new int[SAMPLES];
+	/** Offsets inside the circle, as the mixer sees them */
+	private static final int[] OFFSET_X = new int[SAMPLES];
+	private static final int[] OFFSET_Y = new int[SAMPLES];
+	
+	static
+	{
+		Random random = new Random(1234);
+		for(int i = 0; i < SAMPLES; i++)
+		{
+			TOUCH_X[i] = random.nextInt(4 * RADIUS) - 2 * RADIUS;
+			TOUCH_Y[i] = random.nextInt(4 * RADIUS) - 2 * RADIUS;
+			long offset = CircleMath.clamp(TOUCH_X[i], TOUCH_Y[i], RADIUS);
+			OFFSET_X[i] = CircleOffset.x(offset);
+			OFFSET_Y[i] = CircleOffset.y(offset);
+		}
+	}
+	
+	/**
+	 * Add every benchmark to a runner.
+	 */
+	public static void addAll(BenchmarkRunner runner)
+	{
+		runner.add(new Benchmark("mixer.table")
+		{
+			public long run(int count)
+			{
+				long sink = 0;
+				for(int i = 0; i < count; i++)
+					sink += DriveMixer.mix(OFFSET_X[i & (SAMPLES - 1)], OFFSET_Y[i & (SAMPLES - 1)]);
+				return sink;
+			}
+		});
+		
+		runner.add(new Benchmark("mixer.exact")
+		{
+			public long run(int count)
+			{
+				long sink = 0;
+				for(int i = 0; i < count; i++)
+					sink += DriveMixer.mixExact(OFFSET_X[i & (SAMPLES - 1)], OFFSET_Y[i & (SAMPLES - 1)]);
+				return sink;
+			}
+		});
+		
+		runner.add(new Benchmark("circle.clamp")
+		{
+			public long run(int count)
+			{
+				long sink = 0;
+				for(int i = 0; i < count; i++)
+					sink += CircleMath.clamp(TOUCH_X[i & (SAMPLES - 1)], TOUCH_Y[i & (SAMPLES - 1)], RADIUS);
+				return sink;
+			}
+		});
+		
+		runner.add(new Benchmark("touch.filter")
+		{
+			private final TouchFilter filter = new TouchFilter();
+			
+			//One operation is one sample, 8 ms apart like a batched move event
+			public long run(int count)
+			{
+				for(int i = 0; i < count; i++)
+					filter.add(TOUCH_X[i & (SAMPLES - 1)], TOUCH_Y[i & (SAMPLES - 1)], i * 8000000L);
+				return (long) filter.getX();
+			}
+		});
+		
+		runner.add(new Benchmark("circle.spring")
+		{
+			private final CenteringSpring spring = new CenteringSpring();
+			
+			//One operation is one frame at 60 fps
+			public long run(int count)
+			{
+				long sink = 0;
+				int sample = 0;
+				long now = 0;
+				spring.release(OFFSET_X[0], OFFSET_Y[0], now);
+				for(int i = 0; i < count; i++)
+				{
+					now += 16666667;
+					sink += spring.step(now);
+					if(!spring.isMoving())
+					{
+						//Centred, start again from the next sample
+						sample = (sample + 1) & (SAMPLES - 1);
+						spring.release(OFFSET_X[sample], OFFSET_Y[sample], now);
+					}
+				}
+				return sink;
+			}
+		});
+		
+		runner.add(new Benchmark("circle.offset")
+		{
+			public long run(int count)
+			{
+				long sink = 0;
+				for(int i = 0; i < count; i++)
+				{
+					long offset = CircleOffset.pack(OFFSET_X[i & (SAMPLES - 1)], OFFSET_Y[i & (SAMPLES - 1)]);
+					sink += CircleOffset.x(offset) - CircleOffset.y(offset);
+				}
+				return sink;
+			}
+		});
+		
+		runner.add(new Benchmark("frame.encode")
+		{
+			private final DriveFrame frame = new DriveFrame();
+			private final byte[] buffer = new byte[DriveFrame.LENGTH];
+			
+			public long run(int count)
+			{
+				long sink = 0;
+				for(int i = 0; i < count; i++)
+				{
+					frame.set(i, i >> 1, i >> 2, 0);
+					sink += frame.encode(buffer, 0) + buffer[DriveFrame.LENGTH - 1];
+				}
+				return sink;
+			}
+		});
+		
+		runner.add(new Benchmark("frame.decode")
+		{
+			private final DriveFrame frame = new DriveFrame();
+			private final byte[] buffer = new byte[DriveFrame.LENGTH * SAMPLES];
+			
+			{
+				for(int i = 0; i < SAMPLES; i++)
+				{
+					frame.set(i, OFFSET_X[i], OFFSET_Y[i], 0);
+					frame.encode(buffer, i * DriveFrame.LENGTH);
+				}
+			}
+			
+			public long run(int count)
+			{
+				long sink = 0;
+				for(int i = 0; i < count; i++)
+				{
+					if(frame.decode(buffer, (i & (SAMPLES - 1)) * DriveFrame.LENGTH))
+						sink += frame.getLeft();
+				}
+				return sink;
+			}
+		});
+		
+		runner.add(new Benchmark("parser.telemetry")
+		{
+			private final FrameParser parser = new FrameParser();
+			private final byte[] stream = new byte[TelemetryFrame.LENGTH * SAMPLES];
+			private long sum;
+			
+			{
+				TelemetryFrame frame = new TelemetryFrame();
+				for(int i = 0; i < SAMPLES; i++)
+				{
+					frame.set(TelemetryFrame.TYPE_ENCODERS, i, OFFSET_X[i], OFFSET_Y[i]);
+					frame.encode(stream, i * TelemetryFrame.LENGTH);
+				}
+				parser.registerListener(new TelemetryListener()
+				{
+					public void onTelemetry(TelemetryFrame frame)
+					{
+						sum += frame.getFirst();
+					}
+				});
+			}
+			
+			//One operation is one frame, fed in chunks the size a socket read might return
+			public long run(int count)
+			{
+				int chunk = 3 * TelemetryFrame.LENGTH + 5;
+				int bytes = count * TelemetryFrame.LENGTH;
+				int position = 0;
+				while(bytes > 0)
+				{
+					int length = Math.min(Math.min(chunk, bytes), stream.length - position);
+					parser.feed(stream, position, length);
+					position = (position + length) % stream.length;
+					bytes -= length;
+				}
+				return sum;
+			}
+		});
+		
+		runner.add(new Benchmark("queue.offerPoll")
+		{
+			private final CommandQueue queue = new CommandQueue(CommandQueue.DEFAULT_DEPTH, CommandQueue.DropPolicy.DROP_OLDEST);
+			private final byte[] in = new byte[DriveFrame.LENGTH];
+			private final byte[] out = new byte[CommandQueue.MAX_COMMAND_LENGTH];
+			
+			public long run(int count)
+			{
+				long sink = 0;
+				for(int i = 0; i < count; i++)
+				{
+					in[1] = (byte) i;
+					queue.offer(in, 0, in.length);
+					sink += queue.poll(out) + out[1];
+				}
+				return sink;
+			}
+		});
+		
+		runner.add(new Benchmark("filter.offer")
+		{
+			private final DriveFilter filter = new DriveFilter();
+			
+			public long run(int count)
+			{
+				long sink = 0;
+				for(int i = 0; i < count; i++)
+				{
+					int mixed = DriveMixer.mix(OFFSET_X[i & (SAMPLES - 1)] >> 3, OFFSET_Y[i & (SAMPLES - 1)] >> 3);
+					sink += filter.offer(DriveMixer.left(mixed), DriveMixer.right(mixed), i);
+				}
+				return sink;
+			}
+		});
+		
+		runner.add(new Benchmark("recorder.record")
+		{
+			private final FlightRecorder recorder = openRecorder();
+			private final byte[] frame = new byte[DriveFrame.LENGTH];
+			
+			public long run(int count)
+			{
+				for(int i = 0; i < count; i++)
+				{
+					frame[1] = (byte) i;
+					recorder.record(FlightRecorder.DIRECTION_OUT, frame, 0, frame.length);
+				}
+				return recorder.getRecordCount();
+			}
+		});
+	}
+	
+	/**
+	 * Open a recorder on a temporary file that is deleted on exit.
+	 */
+	private static FlightRecorder openRecorder()
+	{
+		try
+		{
+			File file = File.createTempFile("bench", ".rec");
+			file.deleteOnExit();
+			return new FlightRecorder(file);
+		}
+		catch(IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public static void main(String[] args) throws Exception
+	{
+		String filter = null;
+		String baseline = null;
+		String writeBaseline = null;
+		double tolerance = BenchmarkRunner.DEFAULT_TIME_TOLERANCE;
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("--filter"))
+				filter = args[++i];
+			else if(args[i].equals("--baseline"))
+				baseline = args[++i];
+			else if(args[i].equals("--write-baseline"))
+				writeBaseline = args[++i];
+			else if(args[i].equals("--tolerance"))
+				tolerance = Double.parseDouble(args[++i]);
+			else
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+		}
+		
+		BenchmarkRunner runner = new BenchmarkRunner();
+		addAll(runner);
+		List<BenchmarkRunner.Result> results = runner.runAll(filter);
+		
+		if(writeBaseline != null)
+			BenchmarkRunner.writeBaseline(writeBaseline, results);
+		if(baseline != null && BenchmarkRunner.checkBaseline(baseline, results, tolerance) > 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,92 @@
+package realms.jarlaxle.check;
+
+import realms.jarlaxle.robot.DriveMixer;
+
+/** Checks that DriveMixer puts exactly the same bytes on the wire as the
+ * mixing that used to be inline in JarlaxleActivity.sendRightLeft.  Every
+ * offset in the table is tried, and a border around it that falls back to
+ * the formula.  Exits with status 1 on the first mismatch.
+ */
+public class MixerCheck {
+	
+	/** Offsets past the table that are also tried */
+	private static final int BORDER = 16;
+	
+	public static void main(String[] args)
+	{
+		int limit = DriveMixer.RANGE + BORDER;
+		int checked = 0;
+		for(int y = -limit; y <= limit; y++)
+		{
+			for(int x = -limit; x <= limit; x++)
+			{
+				int packed = DriveMixer.mix(x, y);
+				int expected = original(x, y);
+				if(packed != expected)
+				{
+					System.out.println("MISMATCH at x=" + x + " y=" + y
+							+ ": left " + DriveMixer.left(packed) + " right " + DriveMixer.right(packed)
+							+ ", original left " + ((expected >> 8) & 0xFF) + " right " + (expected & 0xFF));
+					System.exit(1);
+				}
+				checked++;
+			}
+		}
+		System.out.println("mixer: " + checked + " offsets match the original formula");
+	}
+	
+	/**
+	 * The mixing from sendRightLeft before it moved into DriveMixer, frozen
+	 * here and not to be changed.  It sent each value as a char through
+	 * write(char), which kept the low byte.
+	 * @return - Left and right wire bytes packed like DriveMixer.mix()
+	 */
+	private static int original(int X, int Y)
+	{
+		int xSign = 1;
+		if(X < 0)
+		{
+			xSign = -1;
+		}
+		double magnitude = Math.abs(Y);
+		int right = 0;
+		int left = 0;
+		
+		if(Y >=0)
+		{
+			right = (int) Math.sqrt(Math.abs(magnitude*magnitude - X*X*xSign));
+			left = (int) Math.sqrt(Math.abs(magnitude*magnitude + X*X*xSign));
+			
+			if((magnitude*magnitude - X*X*xSign) > 0)
+			{
+				right += 128;
+			}
+			
+			if((magnitude*magnitude + X*X*xSign) > 0)
+			{
+				left += 128;
+			}
+		}
+		else if(Y < 0)
+		{
+			right = (int) Math.sqrt(Math.abs(-1*magnitude*magnitude + X*X*xSign));
+			left = (int) Math.sqrt(Math.abs(-1*magnitude*magnitude - X*X*xSign));
+			
+			if(-1*magnitude*magnitude + X*X*xSign > 0)
+			{
+				right += 128;
+			}
+			
+			if(-1*magnitude*magnitude - X*X*xSign > 0)
+			{
+				left += 128;
+			}
+		}
+		
+		char rightSend = (char)right;
+		char leftSend = (char)left;
+		int rightByte = (byte) rightSend & 0xFF;
+		int leftByte = (byte) leftSend & 0xFF;
+		return (leftByte << 8) | rightByte;
+	}
+}
@@ -0,0 +1,187 @@
+package realms.jarlaxle.replay;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import realms.jarlaxle.protocol.FrameParser;
+import realms.jarlaxle.recorder.FlightLog;
+import realms.jarlaxle.recorder.FlightRecorder;
+import realms.jarlaxle.transport.CommandQueue;
+import realms.jarlaxle.transport.Link;
+import realms.jarlaxle.transport.PipeTransport;
+import realms.jarlaxle.transport.TcpTransport;
+import realms.jarlaxle.transport.Transport;
+
+/** Plays a FlightRecorder file back through the transport layer.
+ * <p>
+ * By default the commands that were sent are written to a robot, or a
+ * stand-in for one, over TCP through a Link, keeping their original
+ * spacing divided by the speed.  The recorder carries on in the same file
+ * every time the app starts, so gaps longer than --max-gap, such as the
+ * time between two sessions, are cut down to it.  With --in the bytes that were read are
+ * fed through a pipe into a FrameParser instead, to reproduce what the
+ * phone saw.
+ * <p>
+ * Run with tools/replay.sh.  Arguments:
+ * <pre>
+ * file               the recorder file, pulled from the phone's files directory
+ * --host name        host to send commands to, default localhost
+ * --port n           port to send commands to, default 7000
+ * --speed x          playback speed, default 1, 0 plays as fast as possible
+ * --max-gap ms       longest recorded gap between records that is kept, default 1000
+ * --in               replay the bytes read instead of the commands sent
+ * </pre>
+ */
+public class Replay {
+	
+	/** Port used if none is given */
+	public static final int DEFAULT_PORT = 7000;
+	/** Longest gap between records kept if none is given, in milliseconds */
+	public static final long DEFAULT_MAX_GAP_MILLIS = 1000;
+	/** Depth of the link's queue, deep so fast playback is not dropped */
+	private static final int QUEUE_DEPTH = 4096;
+	
+	public static void main(String[] args) throws Exception
+	{
+		String file = null;
+		String host = "localhost";
+		int port = DEFAULT_PORT;
+		double speed = 1;
+		long maxGapMillis = DEFAULT_MAX_GAP_MILLIS;
+		boolean inbound = false;
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("--host"))
+				host = args[++i];
+			else if(args[i].equals("--port"))
+				port = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--speed"))
+				speed = Double.parseDouble(args[++i]);
+			else if(args[i].equals("--max-gap"))
+				maxGapMillis = Long.parseLong(args[++i]);
+			else if(args[i].equals("--in"))
+				inbound = true;
+			else if(file == null && !args[i].startsWith("--"))
+				file = args[i];
+			else
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+		}
+		if(file == null)
+			throw new IllegalArgumentException("No recorder file given.");
+		if(speed < 0)
+			throw new IllegalArgumentException("The speed can not be negative.");
+		if(maxGapMillis < 0)
+			throw new IllegalArgumentException("The gap can not be negative.");
+		long maxGapNanos = maxGapMillis * 1000000L;
+		
+		FlightLog log = new FlightLog(new File(file));
+		int direction = inbound ? FlightRecorder.DIRECTION_IN : FlightRecorder.DIRECTION_OUT;
+		List<FlightLog.Record> records = log.getRecords(direction);
+		System.out.println(file + ": " + log.size() + " records, " + records.size()
+				+ (inbound ? " reads" : " commands") + " to replay");
+		if(records.isEmpty())
+			return;
+		
+		if(inbound)
+			replayInbound(records, speed, maxGapNanos);
+		else
+			replayOutbound(records, new TcpTransport(host, port), speed, maxGapNanos);
+	}
+	
+	/**
+	 * Write the recorded commands to a transport through a Link.
+	 */
+	private static void replayOutbound(List<FlightLog.Record> records, Transport transport, double speed, long maxGapNanos) throws Exception
+	{
+		transport.connect();
+		CommandQueue queue = new CommandQueue(QUEUE_DEPTH, CommandQueue.DropPolicy.DROP_NEWEST);
+		final Link link = new Link(transport, queue, null);
+		link.start();
+		
+		long start = play(records, speed, maxGapNanos, new Sink()
+		{
+			public void accept(byte[] data)
+			{
+				link.write(data, 0, Math.min(data.length, CommandQueue.MAX_COMMAND_LENGTH));
+			}
+		});
+		
+		//Let the writer drain the queue before reporting
+		while(link.isRunning() && !queue.isEmpty())
+			Thread.sleep(1);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		boolean lost = !link.isRunning();
+		link.cancel();
+		
+		System.out.println("sent " + link.getWrittenCount() + " of " + records.size()
+				+ " commands in " + elapsed + " ms, " + queue.getDroppedCount() + " dropped"
+				+ (lost ? ", the connection was lost" : ""));
+	}
+	
+	/**
+	 * Feed the recorded reads through a pipe into a parser.
+	 */
+	private static void replayInbound(List<FlightLog.Record> records, double speed, long maxGapNanos) throws Exception
+	{
+		PipeTransport[] pipe = PipeTransport.createPair();
+		pipe[0].connect();
+		pipe[1].connect();
+		FrameParser parser = new FrameParser();
+		Link link = new Link(pipe[1], new CommandQueue(CommandQueue.DEFAULT_DEPTH, CommandQueue.DropPolicy.DROP_OLDEST), null);
+		link.setReceiver(parser);
+		link.start();
+		
+		final Transport robot = pipe[0];
+		long start = play(records, speed, maxGapNanos, new Sink()
+		{
+			public void accept(byte[] data) throws Exception
+			{
+				robot.write(data, 0, data.length);
+			}
+		});
+		
+		//Closing the robot's end lets the reader finish what is buffered and stop
+		robot.close();
+		while(link.isRunning())
+			Thread.sleep(1);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		
+		System.out.println("parsed " + parser.getFrameCount() + " frames in " + elapsed + " ms, "
+				+ parser.getCorruptCount() + " corrupt, " + parser.getSkippedCount() + " bytes skipped");
+	}
+	
+	/** Where play() sends each record */
+	private interface Sink
+	{
+		public void accept(byte[] data) throws Exception;
+	}
+	
+	/**
+	 * Hand every record to a sink at its recorded time divided by the speed.
+	 * @param maxGapNanos - Longest gap between two records that is kept, longer
+	 * ones, and clocks that went backwards between sessions, are cut to this
+	 * @return - System.nanoTime() when playback started
+	 */
+	private static long play(List<FlightLog.Record> records, double speed, long maxGapNanos, Sink sink) throws Exception
+	{
+		long previous = records.get(0).timeNanos;
+		long offset = 0;
+		long start = System.nanoTime();
+		for(FlightLog.Record record : records)
+		{
+			long gap = record.timeNanos - previous;
+			offset += gap < 0 ? 0 : Math.min(gap, maxGapNanos);
+			previous = record.timeNanos;
+			if(speed > 0)
+			{
+				long due = start + (long) (offset / speed);
+				long wait;
+				while((wait = due - System.nanoTime()) > 0)
+					LockSupport.parkNanos(wait);
+			}
+			sink.accept(record.data);
+		}
+		return start;
+	}
+}
@@ -0,0 +1,133 @@
+package realms.jarlaxle.sim;
+
+/** A kinematic model of a differential drive robot.  Motor values are
+ * taken as wheel speeds with no inertia, and the pose and wheel encoders
+ * are integrated over time.  Motor values use the mixer's encoding, 0-255
+ * with 128 added when the motor drives forward.
+ */
+public class DriveModel {
+	
+	/** Wheel speed at full power, in metres per second */
+	public static final double MAX_WHEEL_SPEED = 0.5;
+	/** Distance between the wheels, in metres */
+	public static final double WHEEL_BASE = 0.15;
+	/** Encoder counts per metre of wheel travel */
+	public static final double COUNTS_PER_METRE = 2000;
+	/** Battery voltage when full and when empty, in millivolts */
+	public static final int BATTERY_FULL = 8400;
+	public static final int BATTERY_EMPTY = 6600;
+	/** Charge used per second at full power on both wheels, in percent */
+	private static final double DRAIN_PER_SECOND = 0.05;
+	
+	/** Wheel speeds, in metres per second */
+	private double mLeftSpeed = 0;
+	private double mRightSpeed = 0;
+	
+	/** Pose, in metres and radians */
+	private double mX = 0;
+	private double mY = 0;
+	private double mHeading = 0;
+	
+	/** Distance each wheel has turned, in metres */
+	private double mLeftTravel = 0;
+	private double mRightTravel = 0;
+	
+	/** Charge left, in percent */
+	private double mCharge = 100;
+	
+	/**
+	 * Set the motors.
+	 * @param left - Left motor value
+	 * @param right - Right motor value
+	 */
+	public synchronized void setMotors(int left, int right)
+	{
+		mLeftSpeed = speed(left);
+		mRightSpeed = speed(right);
+	}
+	
+	/**
+	 * Stop both motors.
+	 */
+	public synchronized void stop()
+	{
+		mLeftSpeed = 0;
+		mRightSpeed = 0;
+	}
+	
+	/**
+	 * Move the robot forward in time.
+	 * @param seconds - Time since the last step
+	 */
+	public synchronized void step(double seconds)
+	{
+		double left = mLeftSpeed * seconds;
+		double right = mRightSpeed * seconds;
+		double forward = (left + right) / 2;
+		
+		//Integrate along the mean heading over the step
+		double turn = (right - left) / WHEEL_BASE;
+		double heading = mHeading + turn / 2;
+		mX += forward * Math.cos(heading);
+		mY += forward * Math.sin(heading);
+		mHeading += turn;
+		
+		mLeftTravel += left;
+		mRightTravel += right;
+		
+		double load = (Math.abs(mLeftSpeed) + Math.abs(mRightSpeed)) / (2 * MAX_WHEEL_SPEED);
+		mCharge = Math.max(0, mCharge - load * DRAIN_PER_SECOND * seconds);
+	}
+	
+	/**
+	 * @return - Left encoder count, as sent in telemetry
+	 */
+	public synchronized int getLeftCount()
+	{
+		return (int) Math.round(mLeftTravel * COUNTS_PER_METRE);
+	}
+	
+	/**
+	 * @return - Right encoder count, as sent in telemetry
+	 */
+	public synchronized int getRightCount()
+	{
+		return (int) Math.round(mRightTravel * COUNTS_PER_METRE);
+	}
+	
+	/**
+	 * @return - Battery voltage, in millivolts
+	 */
+	public synchronized int getBatteryMillivolts()
+	{
+		return (int) (BATTERY_EMPTY + (BATTERY_FULL - BATTERY_EMPTY) * mCharge / 100);
+	}
+	
+	/**
+	 * @return - Charge left, in whole percent
+	 */
+	public synchronized int getBatteryPercent()
+	{
+		return (int) Math.ceil(mCharge);
+	}
+	
+	/**
+	 * @return - A short description of the pose and wheel speeds
+	 */
+	public synchronized String describe()
+	{
+		return String.format("x %.2f m, y %.2f m, heading %.0f deg, wheels %.2f/%.2f m/s",
+				mX, mY, Math.toDegrees(mHeading), mLeftSpeed, mRightSpeed);
+	}
+	
+	/**
+	 * @param value - A motor value
+	 * @return - The wheel speed it drives, in metres per second
+	 */
+	private static double speed(int value)
+	{
+		int magnitude = value & 0x7F;
+		double speed = MAX_WHEEL_SPEED * magnitude / 127;
+		return (value & 0x80) != 0 ? speed : -speed;
+	}
+}
@@ -0,0 +1,372 @@
+package realms.jarlaxle.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import realms.jarlaxle.protocol.DriveFrame;
+import realms.jarlaxle.protocol.TelemetryFrame;
+
+/** Stands in for the robot on the local machine.  It listens on a TCP
+ * port, reads drive frames like the robot does over its serial port,
+ * drives a DriveModel with them and sends encoder and battery telemetry
+ * back.  Connect to it with a TcpTransport, for example by passing one
+ * to BluetoothClass.connect() or LinkManager.add().
+ * <p>
+ * Pings are answered with pongs, so the phone's heartbeat can be tested.
+ * Faults can be injected to see how the phone copes: latency on every
+ * frame in both directions, random loss of frames, and stalls where the
+ * robot stops reading and sending for a while.  Like the robot, a
+ * watchdog stops the motors if no frame arrives for a while.
+ * <p>
+ * Run with tools/sim.sh.  Arguments:
+ * <pre>
+ * --port n           port to listen on, default 7000
+ * --rate hz          encoder reports per second, default 20
+ * --latency ms       delay added to every frame in both directions, default 0
+ * --loss x           fraction of frames dropped in each direction, default 0
+ * --stall-every ms   start a stall this often, default never
+ * --stall-for ms     length of each stall, default 0
+ * --watchdog ms      stop the motors after this long without a frame, default 500
+ * --seed n           seed for the loss, so runs can be repeated
+ * --verbose          print the robot's state every second
+ * </pre>
+ * One phone is served at a time, the next one is accepted when it leaves.
+ */
+public class RobotSimulator {
+	
+	/** Port used if none is given, the same as the replay tool's */
+	public static final int DEFAULT_PORT = 7000;
+	/** Milliseconds between steps of the model */
+	private static final int STEP_MILLIS = 10;
+	/** Encoder reports between battery reports */
+	private static final int BATTERY_EVERY = 20;
+	
+	//Settings
+	private int mPort = DEFAULT_PORT;
+	private int mRate = 20;
+	private long mLatency = 0;
+	private double mLoss = 0;
+	private long mStallEvery = 0;
+	private long mStallFor = 0;
+	private long mWatchdog = 500;
+	private boolean isVerbose = false;
+	/** Decide which frames are lost, one for each direction since they are used on different threads */
+	private Random mRandomIn = new Random();
+	private Random mRandomOut = new Random();
+	
+	//Counters for the current connection
+	private final AtomicLong mReceived = new AtomicLong();
+	private final AtomicLong mKeepalives = new AtomicLong();
+	private final AtomicLong mPings = new AtomicLong();
+	private final AtomicLong mCorrupt = new AtomicLong();
+	private final AtomicLong mDroppedIn = new AtomicLong();
+	private final AtomicLong mSent = new AtomicLong();
+	private final AtomicLong mDroppedOut = new AtomicLong();
+	private final AtomicLong mWatchdogTrips = new AtomicLong();
+	
+	public static void main(String[] args) throws Exception
+	{
+		RobotSimulator sim = new RobotSimulator();
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("--port"))
+				sim.mPort = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--rate"))
+				sim.mRate = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--latency"))
+				sim.mLatency = Long.parseLong(args[++i]);
+			else if(args[i].equals("--loss"))
+				sim.mLoss = Double.parseDouble(args[++i]);
+			else if(args[i].equals("--stall-every"))
+				sim.mStallEvery = Long.parseLong(args[++i]);
+			else if(args[i].equals("--stall-for"))
+				sim.mStallFor = Long.parseLong(args[++i]);
+			else if(args[i].equals("--watchdog"))
+				sim.mWatchdog = Long.parseLong(args[++i]);
+			else if(args[i].equals("--seed"))
+			{
+				long seed = Long.parseLong(args[++i]);
+				sim.mRandomIn = new Random(seed);
+				sim.mRandomOut = new Random(seed + 1);
+			}
+			else if(args[i].equals("--verbose"))
+				sim.isVerbose = true;
+			else
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+		}
+		if(sim.mRate < 1 || sim.mRate > 1000)
+			throw new IllegalArgumentException("The rate must be between 1 and 1000 Hz.");
+		if(sim.mLoss < 0 || sim.mLoss > 1)
+			throw new IllegalArgumentException("The loss must be between 0 and 1.");
+		if(sim.mStallFor > sim.mStallEvery)
+			throw new IllegalArgumentException("A stall can not be longer than the time between stalls.");
+		
+		sim.run();
+	}
+	
+	/**
+	 * Serve phones one after another, forever.
+	 */
+	private void run() throws IOException
+	{
+		ServerSocket server = new ServerSocket(mPort, 1, InetAddress.getByName("localhost"));
+		System.out.println("robot simulator listening on localhost:" + mPort);
+		while(true)
+		{
+			Socket socket = server.accept();
+			socket.setTcpNoDelay(true);
+			System.out.println("connected to " + socket.getRemoteSocketAddress());
+			serve(socket);
+			report("disconnected");
+		}
+	}
+	
+	/**
+	 * Run one connection until the phone closes it.
+	 */
+	private void serve(final Socket socket)
+	{
+		resetCounters();
+		final DriveModel model = new DriveModel();
+		final long start = System.currentTimeMillis();
+		final long[] lastFrame = { start };
+		final OutputStream out;
+		final InputStream in;
+		try
+		{
+			out = socket.getOutputStream();
+			in = socket.getInputStream();
+		}
+		catch(IOException e)
+		{
+			close(socket);
+			return;
+		}
+		
+		//One thread applies commands, steps the model and writes, so they never race
+		final ScheduledExecutorService robot = Executors.newSingleThreadScheduledExecutor();
+		
+		robot.scheduleAtFixedRate(new Runnable()
+		{
+			private long mLastStep = System.nanoTime();
+			
+			public void run()
+			{
+				long now = System.nanoTime();
+				model.step((now - mLastStep) / 1e9);
+				mLastStep = now;
+				
+				if(System.currentTimeMillis() - lastFrame[0] > mWatchdog)
+				{
+					//Only count the trip, not every step the motors stay stopped
+					if(lastFrame[0] != 0)
+						mWatchdogTrips.incrementAndGet();
+					lastFrame[0] = 0;
+					model.stop();
+				}
+			}
+		}, STEP_MILLIS, STEP_MILLIS, TimeUnit.MILLISECONDS);
+		
+		robot.scheduleAtFixedRate(new Runnable()
+		{
+			private final TelemetryFrame mFrame = new TelemetryFrame();
+			private int mSequence = 0;
+			
+			public void run()
+			{
+				if(isStalled(start))
+					return;
+				
+				mFrame.set(TelemetryFrame.TYPE_ENCODERS, mSequence, model.getLeftCount(), model.getRightCount());
+				send(robot, out, mFrame);
+				if(mSequence % BATTERY_EVERY == 0)
+				{
+					mFrame.set(TelemetryFrame.TYPE_BATTERY, mSequence, model.getBatteryMillivolts(), model.getBatteryPercent());
+					send(robot, out, mFrame);
+				}
+				mSequence++;
+			}
+		}, 0, 1000000 / mRate, TimeUnit.MICROSECONDS);
+		
+		if(isVerbose)
+		{
+			robot.scheduleAtFixedRate(new Runnable()
+			{
+				public void run()
+				{
+					System.out.println(model.describe());
+					report("so far");
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+		}
+		
+		//Read on this thread until the phone goes away
+		byte[] buffer = new byte[256];
+		int count = 0;
+		DriveFrame frame = new DriveFrame();
+		try
+		{
+			while(true)
+			{
+				while(isStalled(start))
+					Thread.sleep(1);
+				
+				int bytes = in.read(buffer, count, buffer.length - count);
+				if(bytes < 0)
+					break;
+				count += bytes;
+				
+				//Take every whole frame out of the buffer
+				int position = 0;
+				while(count - position >= DriveFrame.LENGTH)
+				{
+					if(buffer[position] != DriveFrame.SYNC)
+					{
+						position++;
+						continue;
+					}
+					if(!frame.decode(buffer, position))
+					{
+						mCorrupt.incrementAndGet();
+						position++;
+						continue;
+					}
+					position += DriveFrame.LENGTH;
+					received(robot, out, model, lastFrame, frame);
+				}
+				System.arraycopy(buffer, position, buffer, 0, count - position);
+				count -= position;
+			}
+		}
+		catch(IOException e)
+		{  }
+		catch(InterruptedException e)
+		{  }
+		
+		robot.shutdownNow();
+		close(socket);
+	}
+	
+	/**
+	 * A valid drive frame arrived, apply it once the latency has passed.
+	 * Pings are answered with a pong instead.
+	 */
+	private void received(final ScheduledExecutorService robot, final OutputStream out, final DriveModel model,
+			final long[] lastFrame, DriveFrame frame)
+	{
+		if(mRandomIn.nextDouble() < mLoss)
+		{
+			mDroppedIn.incrementAndGet();
+			return;
+		}
+		
+		mReceived.incrementAndGet();
+		int flags = frame.getFlags();
+		if((flags & DriveFrame.FLAG_PING) != 0)
+		{
+			mPings.incrementAndGet();
+			final TelemetryFrame pong = new TelemetryFrame();
+			pong.set(TelemetryFrame.TYPE_PONG, frame.getSequence(), 0, 0);
+			robot.schedule(new Runnable()
+			{
+				public void run()
+				{
+					send(robot, out, pong);
+				}
+			}, mLatency, TimeUnit.MILLISECONDS);
+			return;
+		}
+		if((flags & DriveFrame.FLAG_KEEPALIVE) != 0)
+			mKeepalives.incrementAndGet();
+		
+		final int left = frame.getLeft();
+		final int right = frame.getRight();		
+		robot.schedule(new Runnable()
+		{
+			public void run()
+			{
+				lastFrame[0] = System.currentTimeMillis();
+				model.setMotors(left, right);
+			}
+		}, mLatency, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Send a telemetry frame once the latency has passed, unless it is lost.
+	 */
+	private void send(ScheduledExecutorService robot, final OutputStream out, TelemetryFrame frame)
+	{
+		if(mRandomOut.nextDouble() < mLoss)
+		{
+			mDroppedOut.incrementAndGet();
+			return;
+		}
+		
+		final byte[] bytes = new byte[TelemetryFrame.LENGTH];
+		frame.encode(bytes, 0);
+		robot.schedule(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					out.write(bytes);
+					mSent.incrementAndGet();
+				}
+				catch(IOException e)
+				{  }
+			}
+		}, mLatency, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @param start - When the connection was made
+	 * @return - True while the robot is neither reading nor sending
+	 */
+	private boolean isStalled(long start)
+	{
+		if(mStallEvery <= 0 || mStallFor <= 0)
+			return false;
+		long elapsed = System.currentTimeMillis() - start;
+		return elapsed % mStallEvery >= mStallEvery - mStallFor;
+	}
+	
+	private void resetCounters()
+	{
+		mReceived.set(0);
+		mKeepalives.set(0);
+		mPings.set(0);
+		mCorrupt.set(0);
+		mDroppedIn.set(0);
+		mSent.set(0);
+		mDroppedOut.set(0);
+		mWatchdogTrips.set(0);
+	}
+	
+	private void report(String prefix)
+	{
+		System.out.println(prefix + ": received " + mReceived.get() + " frames (" + mKeepalives.get() + " keepalives, " + mPings.get() + " pings), "
+				+ mCorrupt.get() + " corrupt, " + mDroppedIn.get() + " dropped; sent " + mSent.get()
+				+ " reports, " + mDroppedOut.get() + " dropped; watchdog stopped the motors "
+				+ mWatchdogTrips.get() + " times");
+	}
+	
+	private static void close(Socket socket)
+	{
+		try
+		{
+			socket.close();
+		}
+		catch(IOException e)
+		{  }
+	}
+}
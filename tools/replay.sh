@@ -0,0 +1,11 @@
+#!/bin/sh
+# Builds the Android-free sources with the tools and replays a flight recorder file.
+# Usage: tools/replay.sh flight.rec [--host name] [--port n] [--speed x] [--max-gap ms] [--in]
+set -e
+cd "$(dirname "$0")/.."
+OUT="${TMPDIR:-/tmp}/jarlaxle-replay"
+rm -rf "$OUT"
+mkdir -p "$OUT"
+find src tools -name '*.java' | xargs grep -L '^import android\.' > "$OUT/sources.txt"
+javac -nowarn -d "$OUT" @"$OUT/sources.txt"
+java -cp "$OUT" realms.jarlaxle.replay.Replay "$@"
@@ -0,0 +1,11 @@
+#!/bin/sh
+# Builds the Android-free sources with the tools and runs the robot simulator.
+# Usage: tools/sim.sh [--port n] [--rate hz] [--latency ms] [--loss x] [--stall-every ms --stall-for ms] [--verbose]
+set -e
+cd "$(dirname "$0")/.."
+OUT="${TMPDIR:-/tmp}/jarlaxle-sim"
+rm -rf "$OUT"
+mkdir -p "$OUT"
+find src tools -name '*.java' | xargs grep -L '^import android\.' > "$OUT/sources.txt"
+javac -nowarn -d "$OUT" @"$OUT/sources.txt"
+java -cp "$OUT" realms.jarlaxle.sim.RobotSimulator "$@"